@@ -0,0 +1,157 @@
+package speedemon.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import speedemon.IndexedTreeSet;
+
+/**
+ * Synthetic trees for the benchmarks. Tips come in clusters that coalesce
+ * below CLUSTER_HEIGHT, and clusters coalesce above it, so epsilon around
+ * CLUSTER_HEIGHT gives a realistic mix of nodes below and above threshold.
+ */
+final class BenchmarkTrees {
+
+	// height below which taxa in a simulated cluster coalesce
+	final static double CLUSTER_HEIGHT = 0.01;
+	// expected number of clusters coalescing per unit of height above CLUSTER_HEIGHT is k/ROOT_SCALE
+	final static double ROOT_SCALE = 0.1;
+	// average number of taxa in a cluster
+	final static int CLUSTER_SIZE = 4;
+
+	private BenchmarkTrees() {
+	}
+
+	/**
+	 * @return tree with tips t0...t(tipCount-1), leaves numbered 0...tipCount-1
+	 * and internal nodes numbered in order of creation: nodes within clusters first,
+	 * then nodes joining clusters in order of height, so the root is the last node.
+	 */
+	static Tree simulate(int tipCount, long seed) {
+		if (tipCount < 2) {
+			throw new IllegalArgumentException("Need at least 2 tips, not " + tipCount);
+		}
+		Random random = new Random(seed);
+		int [] nextNr = {tipCount};
+
+		List<Node> clusters = new ArrayList<>();
+		int tip = 0;
+		while (tip < tipCount) {
+			int size = Math.min(tipCount - tip, 1 + random.nextInt(2 * CLUSTER_SIZE - 1));
+			List<Node> lineages = new ArrayList<>();
+			for (int i = 0; i < size; i++) {
+				Node leaf = new Node("t" + tip);
+				leaf.setNr(tip);
+				leaf.setHeight(0);
+				lineages.add(leaf);
+				tip++;
+			}
+			double [] heights = new double[size - 1];
+			for (int i = 0; i < heights.length; i++) {
+				heights[i] = random.nextDouble() * CLUSTER_HEIGHT;
+			}
+			Arrays.sort(heights);
+			for (double h : heights) {
+				join(lineages, h, nextNr, random);
+			}
+			clusters.add(lineages.get(0));
+		}
+
+		// internal nodes are numbered in order of creation, so cluster nodes go first
+		// and heights of cluster nodes must be below those of nodes joining clusters
+		double height = CLUSTER_HEIGHT;
+		while (clusters.size() > 1) {
+			height += -Math.log(random.nextDouble()) * ROOT_SCALE / clusters.size();
+			join(clusters, height, nextNr, random);
+		}
+		return new Tree(clusters.get(0));
+	}
+
+	/** replace two random lineages by their parent at height h **/
+	private static void join(List<Node> lineages, double h, int [] nextNr, Random random) {
+		int n = lineages.size();
+		int i = random.nextInt(n);
+		int j = random.nextInt(n - 1);
+		if (j >= i) {
+			j++;
+		}
+		Node parent = new Node();
+		parent.setNr(nextNr[0]++);
+		parent.setHeight(h);
+		parent.addChild(lineages.get(i));
+		parent.addChild(lineages.get(j));
+		// swap-remove j, then overwrite i with the parent
+		lineages.set(j, lineages.get(n - 1));
+		lineages.remove(n - 1);
+		if (i == n - 1) {
+			i = j;
+		}
+		lineages.set(i, parent);
+	}
+
+	static double [] getHeights(Tree tree) {
+		double [] heights = new double[tree.getNodeCount()];
+		for (int i = 0; i < heights.length; i++) {
+			heights[i] = tree.getNode(i).getHeight();
+		}
+		return heights;
+	}
+
+	/** undo height changes made by an operator **/
+	static void setHeights(Tree tree, double [] heights) {
+		for (int i = 0; i < heights.length; i++) {
+			Node node = tree.getNode(i);
+			if (node.getHeight() != heights[i]) {
+				node.setHeight(heights[i]);
+			}
+		}
+		tree.setEverythingDirty(false);
+	}
+
+	static String toNewick(Node node) {
+		StringBuilder buf = new StringBuilder();
+		toNewick(node, buf);
+		return buf.toString();
+	}
+
+	private static void toNewick(Node node, StringBuilder buf) {
+		if (node.isLeaf()) {
+			buf.append(node.getID());
+		} else {
+			buf.append('(');
+			toNewick(node.getLeft(), buf);
+			buf.append(',');
+			toNewick(node.getRight(), buf);
+			buf.append(')');
+		}
+		if (!node.isRoot()) {
+			buf.append(':').append(node.getLength());
+		}
+	}
+
+	/** write treeCount trees with tipCount tips to a temporary NEXUS file **/
+	static File writeTreeSet(int tipCount, int treeCount, long seed) throws IOException {
+		File file = File.createTempFile("speedemon-benchmark", ".trees");
+		file.deleteOnExit();
+		// index written by ClusterTreeSetAnalyser when reading the file
+		IndexedTreeSet.getIndexFile(file).deleteOnExit();
+		try (PrintStream out = new PrintStream(file)) {
+			out.println("#NEXUS");
+			out.println();
+			out.println("Begin trees;");
+			for (int i = 0; i < treeCount; i++) {
+				Tree tree = simulate(tipCount, seed + i);
+				out.println("tree STATE_" + i + " = " + toNewick(tree.getRoot()) + ";");
+			}
+			out.println("End;");
+		}
+		return file;
+	}
+}
@@ -0,0 +1,59 @@
+package speedemon.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.tree.Tree;
+import speedemon.ClusterCounter;
+import speedemon.TreeAboveThreshold;
+
+/**
+ * Full passes over a tree: filtering it to nodes above threshold and counting clusters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusterBenchmark {
+
+	@Param({"100", "1000", "10000"})
+	public int tips;
+
+	@Param({"0.001", "0.01", "0.1"})
+	public double epsilon;
+
+	private Tree tree;
+	private TreeAboveThreshold treeAboveThreshold;
+	private int [] clusters;
+
+	@Setup
+	public void setup() {
+		tree = BenchmarkTrees.simulate(tips, 127);
+		treeAboveThreshold = new TreeAboveThreshold(tree);
+		clusters = new int[tree.getNodeCount()];
+	}
+
+	@Benchmark
+	public int filterTree() {
+		treeAboveThreshold.filterTree(tree, epsilon);
+		return treeAboveThreshold.getNodeCount();
+	}
+
+	@Benchmark
+	public int countClusters() {
+		return ClusterCounter.countClusters(tree, clusters, epsilon);
+	}
+}
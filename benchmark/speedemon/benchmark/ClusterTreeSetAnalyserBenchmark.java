@@ -0,0 +1,68 @@
+package speedemon.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beastfx.app.util.OutFile;
+import beastfx.app.util.TreeFile;
+import speedemon.ClusterTreeSetAnalyser;
+
+/**
+ * ClusterTreeSetAnalyser on a synthetic tree set, including parsing the tree file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusterTreeSetAnalyserBenchmark {
+
+	@Param({"20", "100", "500"})
+	public int tips;
+
+	@Param({"0.001", "0.01", "0.1"})
+	public double epsilon;
+
+	@Param({"1000"})
+	public int trees;
+
+	@Param({"1"})
+	public int threads;
+
+	private File treeFile;
+	private File outFile;
+
+	@Setup
+	public void setup() throws IOException {
+		treeFile = BenchmarkTrees.writeTreeSet(tips, trees, 127);
+		outFile = File.createTempFile("speedemon-benchmark", ".txt");
+		outFile.deleteOnExit();
+	}
+
+	@Benchmark
+	public long analyse() throws Exception {
+		ClusterTreeSetAnalyser analyser = new ClusterTreeSetAnalyser();
+		analyser.initByName("trees", new TreeFile(treeFile.getPath()),
+				"out", new OutFile(outFile.getPath()),
+				"epsilon", epsilon,
+				"burnin", 0,
+				"threads", threads,
+				"verbose", false);
+		analyser.run();
+		return outFile.length();
+	}
+}
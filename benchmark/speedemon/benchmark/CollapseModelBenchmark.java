@@ -0,0 +1,114 @@
+package speedemon.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.speciation.YuleModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Distribution;
+import beast.base.inference.parameter.RealParameter;
+import speedemon.BirthDeathSkylineCollapseModel;
+import speedemon.CollapseModel;
+import speedemon.YuleSkylineCollapse;
+
+/**
+ * calculateLogP of the collapse tree priors as called in an MCMC step:
+ * one internal node height is changed, the model recalculated and its state stored.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollapseModelBenchmark {
+
+	@Param({"100", "1000", "10000"})
+	public int tips;
+
+	@Param({"0.001", "0.01", "0.1"})
+	public double epsilon;
+
+	@Param({"YuleSkylineCollapse", "CollapseModel", "BirthDeathSkylineCollapseModel"})
+	public String model;
+
+	// number of pre-drawn height changes, a power of 2
+	final static int STEPS = 1 << 12;
+
+	private Tree tree;
+	private Distribution distribution;
+	private int [] nodeNrs;
+	private double [] fractions;
+	private int step;
+
+	@Setup
+	public void setup() {
+		tree = BenchmarkTrees.simulate(tips, 127);
+		RealParameter eps = new RealParameter(epsilon + "");
+		RealParameter weight = new RealParameter("0.5");
+		switch (model) {
+		case "YuleSkylineCollapse":
+			distribution = new YuleSkylineCollapse();
+			distribution.initByName("tree", tree, "epsilon", eps, "weight", weight,
+					"birthRateShape", new RealParameter("2.0"), "birthRateRate", new RealParameter("1.0"),
+					"linkedMean", true, "equalEpochs", true, "groupCount", 4);
+			break;
+		case "CollapseModel":
+			YuleModel yule = new YuleModel();
+			yule.initByName("tree", tree, "birthDiffRate", new RealParameter("10.0"));
+			distribution = new CollapseModel();
+			distribution.initByName("tree", tree, "epsilon", eps, "weight", weight, "treePrior", yule);
+			break;
+		case "BirthDeathSkylineCollapseModel":
+			distribution = new BirthDeathSkylineCollapseModel();
+			distribution.initByName("tree", tree, "epsilon", eps, "weight", weight,
+					"birthRate", new RealParameter("10.0"), "deathRate", new RealParameter("1.0"),
+					"samplingRate", new RealParameter("0.0"), "rho", new RealParameter("1.0"),
+					"conditionOnRoot", true);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown model " + model);
+		}
+
+		// internal nodes other than the root, with the relative position of their new height
+		Random random = new Random(128);
+		nodeNrs = new int[STEPS];
+		fractions = new double[STEPS];
+		for (int i = 0; i < STEPS; i++) {
+			nodeNrs[i] = tips + random.nextInt(tips - 2);
+			fractions[i] = random.nextDouble();
+		}
+		step = 0;
+
+		distribution.calculateLogP();
+		distribution.store();
+		tree.setEverythingDirty(false);
+	}
+
+	@Benchmark
+	public double calculateLogP() {
+		int i = step++ & (STEPS - 1);
+		Node node = tree.getNode(nodeNrs[i]);
+		double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		double upper = node.getParent().getHeight();
+		tree.startEditing(null);
+		node.setHeight(lower + fractions[i] * (upper - lower));
+		double logP = distribution.calculateLogP();
+		distribution.store();
+		tree.setEverythingDirty(false);
+		return logP;
+	}
+}
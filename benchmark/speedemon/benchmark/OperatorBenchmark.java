@@ -0,0 +1,81 @@
+package speedemon.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import speedemon.ClusterOperator;
+import speedemon.UniformThresholdOperator;
+
+/**
+ * proposal() of the threshold operators. Every proposal starts from the same tree:
+ * node heights are reset inside the benchmark method, since per invocation fixtures
+ * distort timings at the microsecond scale. The reset benchmark measures the cost of
+ * the reset alone, to be subtracted from that of proposal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperatorBenchmark {
+
+	@Param({"100", "1000", "10000"})
+	public int tips;
+
+	@Param({"0.001", "0.01", "0.1"})
+	public double epsilon;
+
+	@Param({"ClusterOperator", "UniformThresholdOperator"})
+	public String operator;
+
+	private Tree tree;
+	private double [] heights;
+	private Operator op;
+
+	@Setup
+	public void setup() {
+		tree = BenchmarkTrees.simulate(tips, 127);
+		heights = BenchmarkTrees.getHeights(tree);
+		RealParameter eps = new RealParameter(epsilon + "");
+		switch (operator) {
+		case "ClusterOperator":
+			op = new ClusterOperator();
+			break;
+		case "UniformThresholdOperator":
+			op = new UniformThresholdOperator();
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown operator " + operator);
+		}
+		op.initByName("tree", tree, "epsilon", eps, "weight", 1.0);
+		Randomizer.setSeed(129);
+	}
+
+	@Benchmark
+	public double proposal() {
+		BenchmarkTrees.setHeights(tree, heights);
+		return op.proposal();
+	}
+
+	@Benchmark
+	public Tree reset() {
+		BenchmarkTrees.setHeights(tree, heights);
+		return tree;
+	}
+}
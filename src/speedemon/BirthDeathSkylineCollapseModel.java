@@ -3,6 +3,7 @@ package speedemon;
 import java.io.PrintStream;
 
 import beast.base.core.Description;
+import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.parameter.RealParameter;
@@ -12,7 +13,7 @@ import beast.base.evolution.tree.TreeInterface;
 
 @Description("Mixture of birth-death skyline model "
 		   + "and spike distribution on internal node heights")
-public class BirthDeathSkylineCollapseModel extends BirthDeathSkylineModel {
+public class BirthDeathSkylineCollapseModel extends BirthDeathSkylineModel implements ThresholdModel {
     final public Input<RealParameter> collapseHeightInput = new Input<>("epsilon", "collapse height value below wich taxa are considered to be the same species.", Validate.REQUIRED);
     final public Input<RealParameter> collapseWeightInput =  new Input<>("weight", "mixture weight between Yule and spike density.", Validate.REQUIRED);
 
@@ -20,6 +21,17 @@ public class BirthDeathSkylineCollapseModel extends BirthDeathSkylineModel {
     private RealParameter epsilon;
     private TreeInterface tree;
 
+    // tree filtered to be above epsilon, only refiltered where the tree changed
+    private TreeAboveThreshold treeAboveThreshold;
+
+    // number of internal nodes with height > epsilon as last calculated, used to log the cluster count.
+    // Unlike the count in calculateLogP, nodes at epsilon are not included, since ClusterCounter merges them
+    private int aboveThresholdCount, storedAboveThresholdCount;
+    // epsilon used when aboveThresholdCount was calculated; NaN if it was not calculated for the current tree
+    private double countedEpsilon = Double.NaN, storedCountedEpsilon = Double.NaN;
+    // buffer for counting clusters when aboveThresholdCount is not up to date
+    private int [] clusters;
+
     @Override
     public void initAndValidate() {
     	if (Beauti.isInBeauti()) {
@@ -27,37 +39,81 @@ public class BirthDeathSkylineCollapseModel extends BirthDeathSkylineModel {
     	}
     	super.initAndValidate();
     	epsilon = collapseHeightInput.get();
-    	ClusterTreeSetAnalyser.EPSILON = epsilon.getValue();
     	weight = collapseWeightInput.get();
 		tree = treeInput.get() == null ?
 				treeIntervalsInput.get().treeInput.get():
 					treeInput.get();
+		treeAboveThreshold = new TreeAboveThreshold(tree);
+		clusters = new int[tree.getNodeCount()];
+		countedEpsilon = Double.NaN;
     }
     
 	@Override
 	public double calculateLogP() {
 		double epsilon = this.epsilon.getValue();
 
-		TreeAboveThreshold treeAboveThreshold = new TreeAboveThreshold();
-		treeAboveThreshold.assignFrom((Tree) tree);
-		treeAboveThreshold.filterTree(tree, epsilon);
-		logP = super.calculateTreeLogLikelihood(treeAboveThreshold);
+		logP = super.calculateTreeLogLikelihood(getTreeAboveThreshold(epsilon));
 		
 		double w = this.weight.getValue();
 		
 		int k = 0; // number of node heights >= epsilon
+		int above = 0; // number of node heights > epsilon
 		int n = tree.getInternalNodeCount(); // number of internal nodes
 		for (int i = 0; i < n; i++) {
-			if (tree.getNode(n + 1 + i).getHeight() >= epsilon) {
+			double height = tree.getNode(n + 1 + i).getHeight();
+			if (height >= epsilon) {
 				k++;
+				if (height > epsilon) {
+					above++;
+				}
 			}
 		}
 
+		aboveThresholdCount = above;
+		countedEpsilon = epsilon;
+
 		logP += k * Math.log(1-w) + (n-k) * Math.log(w/epsilon);
 	
 		return logP;
     }
 
+	@Override
+	public Function getEpsilon() {
+		return collapseHeightInput.get();
+	}
+
+	/**
+	 * @return tree filtered to be above epsilon. Only nodes that changed since the
+	 * last call are refiltered.
+	 */
+	private TreeAboveThreshold getTreeAboveThreshold(double epsilon) {
+		treeAboveThreshold.refilterTree(tree, epsilon);
+		return treeAboveThreshold;
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		// super is called first so it can keep track of which rates changed
+		return super.requiresRecalculation() || epsilon.somethingIsDirty() || weight.somethingIsDirty();
+	}
+
+	@Override
+	public void store() {
+		super.store();
+		treeAboveThreshold.clearChangedNodes();
+		storedAboveThresholdCount = aboveThresholdCount;
+		storedCountedEpsilon = countedEpsilon;
+	}
+
+	@Override
+	public void restore() {
+		super.restore();
+		// tree and epsilon are already restored, bring the filtered tree back in line with them
+		treeAboveThreshold.refilterTree(tree, epsilon.getValue());
+		aboveThresholdCount = storedAboveThresholdCount;
+		countedEpsilon = storedCountedEpsilon;
+	}
+
 	@Override
 	public void init(PrintStream out) {
 		super.init(out);
@@ -69,10 +125,20 @@ public class BirthDeathSkylineCollapseModel extends BirthDeathSkylineModel {
 	public void log(long sampleNr, PrintStream out) {
 		super.log(sampleNr, out);
 		
-		int [] map = new int[tree.getLeafNodeCount()];
-		boolean [] done = new boolean[tree.getLeafNodeCount()];
-		int clusterCount = YuleSkylineCollapse.countClusters(tree, map, done, epsilon.getValue());
-		out.append(clusterCount + "\t");
+		out.append(getClusterCount() + "\t");
+	}
+
+	/**
+	 * @return number of clusters, taken from the threshold partition of the last calculateLogP
+	 * if epsilon did not change since, otherwise counted on the tree
+	 */
+	private int getClusterCount() {
+		double epsilon = this.epsilon.getValue();
+		if (epsilon == countedEpsilon) {
+			// every internal node at or below epsilon merges two clusters, as in ClusterCounter
+			return tree.getLeafNodeCount() - tree.getInternalNodeCount() + aboveThresholdCount;
+		}
+		return ClusterCounter.countClusters(tree, clusters, epsilon);
 	}
     
 	
@@ -88,9 +154,6 @@ public class BirthDeathSkylineCollapseModel extends BirthDeathSkylineModel {
             return Double.NEGATIVE_INFINITY;
         }
 
-        // number of lineages at each time ti
-        int[] n = new int[totalIntervals];
-
         int index = 0;
         if (times[index] < 0.)
             index = index(0.);
@@ -195,15 +258,13 @@ public class BirthDeathSkylineCollapseModel extends BirthDeathSkylineModel {
         }
 
         // last product term in f[T], factorizing from 1 to m //
+        // number of lineages n[j] and sampled ancestors k[j] at each time ti
+        countLineages(tree);
+        int[] n = lineageCounts;
+        int[] k = sampledAncestorCounts;
         double time;
         for (int j = 0; j < totalIntervals; j++) {
             time = j < 1 ? 0 : times[j - 1];
-            int[] k = {0};
-            if (!SAModel) {
-                n[j] = ((j == 0) ? 0 : lineageCountAtTime(times[totalIntervals - 1] - time, tree));
-            } else {
-                n[j] = ((j == 0) ? 0 : lineageCountAtTime(times[totalIntervals - 1] - time, tree, k));
-            }
             if (n[j] > 0) {
                 temp = n[j] * (log_q(j, times[j], time) + Math.log(1 - rho[j-1]));
                 logP += temp;
@@ -215,8 +276,8 @@ public class BirthDeathSkylineCollapseModel extends BirthDeathSkylineModel {
             }
 
             if (SAModel && j>0 && N != null) { // term for sampled leaves and two-degree nodes at time t_i
-                logP += k[0] * (log_q(j, times[j], time) + Math.log(1-r[j])) + //here g(j,..) corresponds to q_{i+1}, r[j] to r_{i+1},
-                        (N[j-1]-k[0])*(Math.log(r[j]+ (1-r[j])*p0(j, times[j], time))); //N[j-1] to N_i, k[0] to K_i,and thus N[j-1]-k[0] to M_i
+                logP += k[j] * (log_q(j, times[j], time) + Math.log(1-r[j])) + //here g(j,..) corresponds to q_{i+1}, r[j] to r_{i+1},
+                        (N[j-1]-k[j])*(Math.log(r[j]+ (1-r[j])*p0(j, times[j], time))); //N[j-1] to N_i, k[j] to K_i,and thus N[j-1]-k[j] to M_i
                 if (Double.isInfinite(logP)) {
                     return logP;
                 }
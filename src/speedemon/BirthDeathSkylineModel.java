@@ -23,6 +23,7 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.inference.distribution.Uniform;
+import beast.base.util.HeapSort;
 
 import java.util.*;
 
@@ -136,16 +137,58 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
     protected String taxonName;
     protected double taxonAge;
 
-    // these four arrays are totalIntervals in length
-    protected Double[] birth;
-    protected Double[] death;
-    protected Double[] psi;
-    protected Double[] rho;
-    protected Double[] r;
+    // these arrays are totalIntervals in length, and only reallocated when totalIntervals changes
+    protected double[] birth;
+    protected double[] death;
+    protected double[] psi;
+    protected double[] rho;
+    protected double[] r;
 
     // true if the node of the given index occurs at the time of a rho-sampling event
     protected boolean[] isRhoTip;
 
+    // the part of preCalculation that does not depend on the tree is only redone when a parameter changed
+    // or the root height changed. ratesLogP is 0, or negative infinity if the rates are invalid
+    private boolean ratesAreDirty = true;
+    private boolean ratesUpdatedSinceStore;
+    private double ratesLogP;
+    private double ratesTreeHeight = Double.NaN;
+    private double ratesSourceTreeHeight = Double.NaN;
+
+    // the interval grid (times, and the change time lists and parameter indices below) is only rebuilt
+    // when a change time parameter changed, or the time change times are measured from (see getMaxTime)
+    private boolean timesAreDirty = true;
+    private boolean timesUpdatedSinceStore;
+    private double timesMaxTime = Double.NaN;
+    // for each interval, the index of the birth, death, sampling rate and removal probability
+    // in their parameters, and the index of rho or -1 if there is no rho-sampling at its end
+    protected int[] birthIndex, deathIndex, samplingIndex, rIndex, rhoIndex;
+    // all change times, before removing duplicates
+    private double[] allTimes = new double[0];
+
+    // number of lineages and of sampled ancestors at the start of each interval, filled in by countLineages
+    protected int[] lineageCounts;
+    protected int[] sampledAncestorCounts;
+    // sorted node heights used by countLineages and for assigning nodes to intervals, only reallocated when the tree grows
+    private double[] internalHeights = new double[0];
+    private double[] ancestorHeights = new double[0];
+    // tip heights by node number, and in increasing order with tipOrder[i] the number of the tip
+    // at sortedTipHeights[i]. These are only sorted again when tip heights changed, see updateTipHeightIndex
+    private double[] tipHeights = new double[0];
+    private double[] sortedTipHeights = new double[0];
+    private int[] tipOrder = new int[0];
+
+    // per interval terms of log_q and p0 that only depend on the rates, filled in by precalculateRates
+    protected double[] onePlusB, oneMinusB, logBirth, logPsi;
+    // times, intervals, log_q and p0 of the nodes (or intervals) evaluated in one batch by logQAndP0
+    private double[] batchTimes = new double[0];
+    private int[] batchEpochs = new int[0];
+    private int[] batchNodes = new int[0];
+    private double[] batchLogQ = new double[0];
+    private double[] batchP0 = new double[0];
+
+    private final static double LOG4 = Math.log(4);
+
     /**
      * The number of change points in the birth rate
      */
@@ -186,9 +229,8 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
 
     Boolean contempData;
     //List<Interval> intervals = new ArrayList<Interval>();
-    SortedSet<Double> timesSet = new TreeSet<Double>();
 
-    protected Double[] times = new Double[]{0.};
+    protected double[] times = new double[]{0.};
 
     protected Boolean transform, transform_d_r_s;
     Boolean m_forceRateChange;
@@ -230,6 +272,7 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
         samplingRateChangeTimes.clear();
         if (SAModel) rChangeTimes.clear();
         totalIntervals = 0;
+        timesAreDirty = true;
 
         m_forceRateChange = forceRateChange.get();
         birthRateTimesRelative = birthRateChangeTimesRelativeInput.get();
@@ -249,10 +292,7 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
         transform = transform_d_r_s = false;
         if (birthRate.get() != null && deathRate.get() != null && samplingRate.get() != null) {
 
-            birth = birthRate.get().getValues();
-            death = deathRate.get().getValues();
-            psi = samplingRate.get().getValues();
-            if (SAModel) r = removalProbability.get().getValues();
+            // rates are filled in by updateRatesAndTimes
 
         } else if (reproductiveNumberInput.get() != null && becomeUninfectiousRate.get() != null && samplingProportion.get() != null) {
 
@@ -293,11 +333,11 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
         if (SAModel) rChanges = removalProbability.get().getDimension() -1;
 
         if (m_rho.get()!=null) {
-            rho = m_rho.get().getValues();
             rhoChanges = m_rho.get().getDimension() - 1;
         }
 
         collectTimes();
+        allocateRateArrays();
 
         if (m_rho.get() != null) {
             // constantRho = !(m_rho.get().getDimension() > 1);
@@ -316,16 +356,11 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
                     throw new RuntimeException("when contemp=true, rho must have dimension 1");
 
                 else {
-                    rho = new Double[totalIntervals];
-                    Arrays.fill(rho, 0.);
                     rho[totalIntervals - 1] = m_rho.get().getValue();
                     // rhoSamplingCount = 1;
                 }
             }
 
-        } else {
-            rho = new Double[totalIntervals];
-            Arrays.fill(rho, 0.);
         }
         isRhoTip = new boolean[treeInput.get().getLeafNodeCount()];
 
@@ -438,13 +473,46 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
             }
         } else return false;
 
-        for (int i=0; i<rho.length-1; i++) {
-            if (rho[i] != 0.0) {
+        double[] rhos = m_rho.get() != null && !contempData ? m_rho.get().getDoubleValues() : rho;
+        for (int i=0; i<rhos.length-1; i++) {
+            if (rhos[i] != 0.0) {
                 return false;
             }
         }
 
-        return (rho[rho.length-1] != 0.0);
+        return (rhos[rhos.length-1] != 0.0);
+    }
+
+    /**
+     * (Re)allocate arrays that are totalIntervals in length. This only allocates
+     * when the number of intervals changed, so evaluations do not create garbage.
+     */
+    protected void allocateRateArrays() {
+        if (birth != null && birth.length == totalIntervals) {
+            return;
+        }
+        birth = new double[totalIntervals];
+        death = new double[totalIntervals];
+        psi = new double[totalIntervals];
+        rho = new double[totalIntervals];
+        r = new double[totalIntervals];
+        Ai = new double[totalIntervals];
+        Bi = new double[totalIntervals];
+        p0 = new double[totalIntervals];
+        Aihat = new double[totalIntervals];
+        Bihat = new double[totalIntervals];
+        p0hat = new double[totalIntervals];
+        lineageCounts = new int[totalIntervals];
+        sampledAncestorCounts = new int[totalIntervals];
+        onePlusB = new double[totalIntervals];
+        oneMinusB = new double[totalIntervals];
+        logBirth = new double[totalIntervals];
+        logPsi = new double[totalIntervals];
+        birthIndex = new int[totalIntervals];
+        deathIndex = new int[totalIntervals];
+        samplingIndex = new int[totalIntervals];
+        rIndex = new int[totalIntervals];
+        rhoIndex = new int[totalIntervals];
     }
 
     /**
@@ -455,13 +523,7 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
 
         if (printTempResults) System.out.println("relative = " + relative);
 
-        double maxTime;
-
-        if (origin.get() != null) {
-            maxTime = originIsRootEdge.get()? treeInput.get().getRoot().getHeight() + origin.get().getValue() :origin.get().getValue();
-        } else {
-            maxTime = treeInput.get().getRoot().getHeight();
-        }
+        double maxTime = getMaxTime();
 
         if (intervalTimes == null) { //equidistant
 
@@ -506,37 +568,65 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
         }
     }
 
+    /**
+     * @return the time change times end at, which relative change times are a proportion of
+     */
+    private double getMaxTime() {
+        if (origin.get() != null) {
+            return originIsRootEdge.get()? treeInput.get().getRoot().getHeight() + origin.get().getValue() :origin.get().getValue();
+        }
+        return treeInput.get().getRoot().getHeight();
+    }
+
     /*
     * Counts the number of tips at each of the contemporaneous sampling times ("rho" sampling time)
     * @return negative infinity if tips are found at a time when rho is zero, zero otherwise.
     */
     protected double computeN(TreeInterface tree) {
 
-        isRhoTip = new boolean[tree.getLeafNodeCount()];
-
-        N = new int[totalIntervals];
-
         int tipCount = tree.getLeafNodeCount();
 
-        double[] dates = new double[tipCount];
+        if (isRhoTip == null || isRhoTip.length != tipCount) {
+            isRhoTip = new boolean[tipCount];
+        } else {
+            Arrays.fill(isRhoTip, false);
+        }
 
-        for (int i = 0; i < tipCount; i++) {
-            dates[i] = tree.getNode(i).getHeight();
+        if (N == null || N.length != totalIntervals) {
+            N = new int[totalIntervals];
+        } else {
+            Arrays.fill(N, 0);
         }
+
+        updateTipHeightIndex(tree);
+
         double maxdate = tree.getRoot().getHeight();
 
         for (int k = 0; k < totalIntervals; k++) {
 
+            double time = times[totalIntervals - 1] - times[k];
 
-            for (int i = 0; i < tipCount; i++) {
+            // tips at this time form a range in sortedTipHeights around the position of time
+            int from = Arrays.binarySearch(sortedTipHeights, time);
+            if (from < 0) {
+                from = -from - 1;
+            }
+            int to = from;
+            while (from > 0 && Math.abs((time - sortedTipHeights[from - 1])/maxdate) < 1e-10) {
+                from--;
+            }
+            while (to < tipCount && Math.abs((time - sortedTipHeights[to])/maxdate) < 1e-10) {
+                to++;
+            }
 
-                if (Math.abs(((times[totalIntervals - 1] - times[k]) - dates[i])/maxdate) < 1e-10) {
-                    if (rho[k] == 0 && psi[k] == 0) {
-                        return Double.NEGATIVE_INFINITY;
-                    }
-                    if (rho[k] > 0) {
-                        N[k] += 1;
-                        isRhoTip[i] = true;
+            if (from < to) {
+                if (rho[k] == 0 && psi[k] == 0) {
+                    return Double.NEGATIVE_INFINITY;
+                }
+                if (rho[k] > 0) {
+                    N[k] += to - from;
+                    for (int i = from; i < to; i++) {
+                        isRhoTip[tipOrder[i]] = true;
                     }
                 }
             }
@@ -544,13 +634,41 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
         return 0.;
     }
 
+    /**
+     * Make sure sortedTipHeights and tipOrder reflect the tip heights of tree.
+     * Checking this is linear in the number of tips, sorting is only done when
+     * a tip height changed or the number of tips changed.
+     */
+    private void updateTipHeightIndex(TreeInterface tree) {
+        int tipCount = tree.getLeafNodeCount();
+        if (tipOrder.length == tipCount) {
+            int i = 0;
+            while (i < tipCount && tree.getNode(tipOrder[i]).getHeight() == sortedTipHeights[i]) {
+                i++;
+            }
+            if (i == tipCount) {
+                return;
+            }
+        } else {
+            tipHeights = new double[tipCount];
+            sortedTipHeights = new double[tipCount];
+            tipOrder = new int[tipCount];
+        }
+
+        for (int i = 0; i < tipCount; i++) {
+            tipHeights[i] = tree.getNode(i).getHeight();
+        }
+        HeapSort.sort(tipHeights, tipOrder);
+        for (int i = 0; i < tipCount; i++) {
+            sortedTipHeights[i] = tipHeights[tipOrder[i]];
+        }
+    }
+
     /**
      * Collect all the times of parameter value changes and rho-sampling events
      */
     private void collectTimes() {
 
-        timesSet.clear();
-
         if (isBDSIR()) {
             birthChanges = getSIRdimension() - 1;
         }
@@ -576,46 +694,80 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
                 removalProbabilityChangeTimesInput.get() != null ? removalProbabilityChangeTimesInput.get() : intervalTimes.get(),
                 rChanges, rTimesRelative, reverseTimeArrays[4]);
 
-        for (Double time : birthRateChangeTimes) {
-            timesSet.add(time);
+        int size = birthRateChangeTimes.size() + deathRateChangeTimes.size() + samplingRateChangeTimes.size() +
+                rhoSamplingChangeTimes.size() + (SAModel ? rChangeTimes.size() : 0);
+        if (allTimes.length < size) {
+            allTimes = new double[size];
         }
-        for (Double time : deathRateChangeTimes) {
-            timesSet.add(time);
+        int count = addTimes(birthRateChangeTimes, 0);
+        count = addTimes(deathRateChangeTimes, count);
+        count = addTimes(samplingRateChangeTimes, count);
+        count = addTimes(rhoSamplingChangeTimes, count);
+        if (SAModel) {
+            count = addTimes(rChangeTimes, count);
         }
 
-        for (Double time : samplingRateChangeTimes) {
-            timesSet.add(time);
+        // sort and remove duplicates, in the order and with the equality of Double.compare
+        Arrays.sort(allTimes, 0, count);
+        totalIntervals = 0;
+        for (int i = 0; i < count; i++) {
+            if (totalIntervals == 0 || Double.compare(allTimes[i], allTimes[totalIntervals - 1]) != 0) {
+                allTimes[totalIntervals++] = allTimes[i];
+            }
         }
-
-        for (Double time : rhoSamplingChangeTimes) {
-            timesSet.add(time);
+        if (times.length != totalIntervals) {
+            times = new double[totalIntervals];
         }
+        System.arraycopy(allTimes, 0, times, 0, totalIntervals);
 
-        if (SAModel) {
-            for (Double time : rChangeTimes) {
-                timesSet.add(time);
-            }
+        if (printTempResults) System.out.println("times = " + Arrays.toString(times));
+
+        if (printTempResults) System.out.println("total intervals = " + totalIntervals);
+    }
+
+    private int addTimes(List<Double> changeTimes, int count) {
+        for (Double time : changeTimes) {
+            allTimes[count++] = time;
         }
+        return count;
+    }
 
-        if (printTempResults) System.out.println("times = " + timesSet);
+    /**
+     * Rebuild the interval grid and the parameter index of each interval, unless change times
+     * and the time they are measured from are the same as when it was last built.
+     */
+    private void updateTimes() {
+        double maxTime = getMaxTime();
+        if (!timesAreDirty && maxTime == timesMaxTime) {
+            return;
+        }
 
-        times = timesSet.toArray(new Double[timesSet.size()]);
-        totalIntervals = times.length;
+        collectTimes();
+        allocateRateArrays();
+        for (int i = 0; i < totalIntervals; i++) {
+            birthIndex[i] = index(times[i], birthRateChangeTimes);
+            deathIndex[i] = index(times[i], deathRateChangeTimes);
+            samplingIndex[i] = index(times[i], samplingRateChangeTimes);
+            rIndex[i] = SAModel ? index(times[i], rChangeTimes) : 0;
+            rhoIndex[i] = rhoSamplingChangeTimes.indexOf(times[i]);
+        }
 
-        if (printTempResults) System.out.println("total intervals = " + totalIntervals);
+        timesMaxTime = maxTime;
+        timesAreDirty = false;
+        timesUpdatedSinceStore = true;
     }
 
     protected Double updateRatesAndTimes(TreeInterface tree) {
 
-        collectTimes();
+        updateTimes();
 
         double t_root = tree.getRoot().getHeight();
 
-        if (origin.get() != null && (m_forceRateChange && timesSet.last() > (originIsRootEdge.get()? t_root+ origin.get().getValue() : origin.get().getValue()))) {
+        if (origin.get() != null && (m_forceRateChange && times[totalIntervals - 1] > (originIsRootEdge.get()? t_root+ origin.get().getValue() : origin.get().getValue()))) {
             return Double.NEGATIVE_INFINITY;
         }
 
-        if (conditionOnRootInput.get() && (m_forceRateChange && timesSet.last() > t_root)) {
+        if (conditionOnRootInput.get() && (m_forceRateChange && times[totalIntervals - 1] > t_root)) {
             return Double.NEGATIVE_INFINITY;
         }
 
@@ -625,24 +777,18 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
             transformParameters_d_r_s();
         else {
 
-            Double[] birthRates = birthRate.get().getValues();
-            Double[] deathRates = deathRate.get().getValues();
-            Double[] samplingRates = samplingRate.get().getValues();
-            Double[] removalProbabilities = new Double[1];
-            if (SAModel) removalProbabilities = removalProbability.get().getValues();
+            RealParameter birthRates = birthRate.get();
+            RealParameter deathRates = deathRate.get();
+            RealParameter samplingRates = samplingRate.get();
+            RealParameter removalProbabilities = removalProbability.get();
 
-            birth = new Double[totalIntervals];
-            death = new Double[totalIntervals];
-            psi = new Double[totalIntervals];
-            if (SAModel) r =  new Double[totalIntervals];
-
-            birth[0] = birthRates[0];
+            birth[0] = birthRates.getArrayValue(0);
 
             for (int i = 0; i < totalIntervals; i++) {
-                if (!isBDSIR()) birth[i] = birthRates[index(times[i], birthRateChangeTimes)];
-                death[i] = deathRates[index(times[i], deathRateChangeTimes)];
-                psi[i] = samplingRates[index(times[i], samplingRateChangeTimes)];
-                if (SAModel) r[i] = removalProbabilities[index(times[i], rChangeTimes)];
+                if (!isBDSIR()) birth[i] = birthRates.getArrayValue(birthIndex[i]);
+                death[i] = deathRates.getArrayValue(deathIndex[i]);
+                psi[i] = samplingRates.getArrayValue(samplingIndex[i]);
+                if (SAModel) r[i] = removalProbabilities.getArrayValue(rIndex[i]);
             }
         }
 
@@ -657,18 +803,22 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
 
         if (m_rho.get() != null && (m_rho.get().getDimension()==1 ||  rhoSamplingTimes.get() != null)) {
 
-            Double[] rhos = m_rho.get().getValues();
-            rho = new Double[totalIntervals];
+            RealParameter rhos = m_rho.get();
 
 //            rho[totalIntervals-1]=rhos[rhos.length-1];
             for (int i = 0; i < totalIntervals; i++) {
 
                 rho[i]= //rhoSamplingChangeTimes.contains(times[i]) ? rhos[rhoSamplingChangeTimes.indexOf(times[i])] : 0.;
                         (rhoChanges>0 || rhoSamplingTimes.get()!=null)?
-                        rhoSamplingChangeTimes.contains(times[i]) ? rhos[rhoSamplingChangeTimes.indexOf(times[i])] : 0.
-                                : rhos[0]
+                        rhoIndex[i] >= 0 ? rhos.getArrayValue(rhoIndex[i]) : 0.
+                                : rhos.getArrayValue(0)
                 ;
             }
+        } else if (m_rho.get() != null && !contempData) {
+            RealParameter rhos = m_rho.get();
+            for (int i = 0; i < Math.min(totalIntervals, rhos.getDimension()); i++) {
+                rho[i] = rhos.getArrayValue(i);
+            }
         }
 
         return 0.;
@@ -682,6 +832,30 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
             return Double.NEGATIVE_INFINITY;
         }
 
+        // rates, times, Ai, Bi and p0 only depend on the tree through its root height
+        double treeHeight = tree.getRoot().getHeight();
+        double sourceTreeHeight = treeInput.get() != null ? treeInput.get().getRoot().getHeight() : treeHeight;
+        if (ratesAreDirty || treeHeight != ratesTreeHeight || sourceTreeHeight != ratesSourceTreeHeight) {
+            ratesLogP = precalculateRates(tree);
+            ratesTreeHeight = treeHeight;
+            ratesSourceTreeHeight = sourceTreeHeight;
+            ratesAreDirty = false;
+            ratesUpdatedSinceStore = true;
+        }
+        if (ratesLogP < 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        if (m_rho.get() != null)
+            if (computeN(tree) < 0)
+                return Double.NEGATIVE_INFINITY;
+
+        return 0.;
+    }
+
+    /*    calculate and store rates, times, Ai, Bi and p0, which do not depend on the tree apart from its root height  */
+    private double precalculateRates(TreeInterface tree) {
+
         // updateRatesAndTimes must be called before calls to index() below
         if (updateRatesAndTimes(tree) < 0) {
             return Double.NEGATIVE_INFINITY;
@@ -691,32 +865,16 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
 
         if (m_rho.get() != null) {
             if (contempData) {
-                rho = new Double[totalIntervals];
                 Arrays.fill(rho, 0.);
                 rho[totalIntervals-1] = m_rho.get().getValue();
             }
 
         } else {
-            rho = new Double[totalIntervals];
             Arrays.fill(rho, 0.0);
         }
 
-        if (m_rho.get() != null)
-            if (computeN(tree) < 0)
-                return Double.NEGATIVE_INFINITY;
-
         int intervalCount = times.length;
 
-        Ai = new double[intervalCount];
-        Bi = new double[intervalCount];
-        p0 = new double[intervalCount];
-
-        if (conditionOn == ConditionOn.RHO_SAMPLING) {
-            Aihat = new double[intervalCount];
-            Bihat = new double[intervalCount];
-            p0hat = new double[intervalCount];
-        }
-
         for (int i = 0; i < intervalCount; i++) {
 
             Ai[i] = Ai(birth[i], death[i], psi[i]);
@@ -768,6 +926,13 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
             if (printTempResults) System.out.println("Bi[" + i + "] = " + Bi[i] + " " + Math.log(Bi[i]));
         }
 
+        for (int i = 0; i < totalIntervals; i++) {
+            onePlusB[i] = 1 + Bi[i];
+            oneMinusB[i] = 1 - Bi[i];
+            logBirth[i] = Math.log(birth[i]);
+            logPsi[i] = Math.log(psi[i]);
+        }
+
         /* if (printTempResults) {
             System.out.println("g(0, x0, 0):" + g(0, times[0], 0));
             System.out.println("g(index(1),times[index(1)],1.) :" + g(index(1), times[index(1)], 1.));
@@ -820,6 +985,57 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
         return Math.log(4) + Ai[index] * (t - ti) - 2 * Math.log(Math.exp(Ai[index] * (t - ti)) * (1 - Bi[index]) + (1 + Bi[index]));
     }
 
+    /**
+     * Batch version of log_q and p0 for count times x[0..count) in intervals epochs[0..count):
+     * logQ[i] = log_q(epochs[i], times[epochs[i]], x[i]) and, if p0 is not null,
+     * p0[i] = p0(epochs[i], times[epochs[i]], x[i]), with the same rounding as the scalar versions.
+     * The exponential shared by log_q and p0 is calculated once per time, and the loop only reads
+     * primitive arrays, so it stays free of calls apart from Math.exp and Math.log.
+     */
+    protected void logQAndP0(int[] epochs, double[] x, int count, double[] logQ, double[] p0) {
+        if (p0 == null) {
+            for (int i = 0; i < count; i++) {
+                int e = epochs[i];
+                double a = Ai[e] * (x[i] - times[e]);
+                logQ[i] = LOG4 + a - 2 * Math.log(Math.exp(a) * oneMinusB[e] + onePlusB[e]);
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            int e = epochs[i];
+            double a = Ai[e] * (x[i] - times[e]);
+            double exp = Math.exp(a);
+            logQ[i] = LOG4 + a - 2 * Math.log(exp * oneMinusB[e] + onePlusB[e]);
+            p0[i] = (birth[e] + death[e] + psi[e] - Ai[e] * (onePlusB[e] - oneMinusB[e] * exp) / (onePlusB[e] + exp * oneMinusB[e])) / (2 * birth[e]);
+        }
+    }
+
+    /**
+     * Fill epochs[0..count) with index(x[i]), where x[0..count) is in increasing order,
+     * in a single merge pass over x and times instead of a binary search per time.
+     */
+    protected void sweepEpochs(double[] x, int count, int[] epochs) {
+        int last = totalIntervals - 1;
+        int epoch = 0;
+        for (int i = 0; i < count; i++) {
+            while (epoch < last && times[epoch] < x[i]) {
+                epoch++;
+            }
+            epochs[i] = epoch;
+        }
+    }
+
+    /** make sure batch arrays can hold count times **/
+    private void allocateBatchArrays(int count) {
+        if (batchTimes.length < count) {
+            batchTimes = new double[count];
+            batchEpochs = new int[count];
+            batchNodes = new int[count];
+            batchLogQ = new double[count];
+            batchP0 = new double[count];
+        }
+    }
+
     /**
      * @param t the time in question
      * @return the index of the given time in the list of times, or if the time is not in the list, the index of the
@@ -905,74 +1121,144 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
         return count;
     }
 
-    protected void transformParameters() {
+    /**
+     * Fill in lineageCounts and sampledAncestorCounts for all intervals in a single sweep
+     * over sorted node heights. lineageCounts[j] equals lineageCountAtTime(times[totalIntervals - 1] - times[j - 1], tree)
+     * for j > 0 (the SAModel version with sampledAncestorCounts[j] as k[0] when SAModel is true), and
+     * lineageCounts[0] = sampledAncestorCounts[0] = 0.
+     * @param tree the tree
+     */
+    protected void countLineages(TreeInterface tree) {
+        int tipCount = tree.getLeafNodeCount();
+        int internalCount = tree.getInternalNodeCount();
+        updateTipHeightIndex(tree);
+        if (ancestorHeights.length < tipCount) {
+            ancestorHeights = new double[tipCount];
+        }
+        if (internalHeights.length < internalCount) {
+            internalHeights = new double[internalCount];
+        }
+
+        for (int i = 0; i < internalCount; i++) {
+            internalHeights[i] = tree.getNode(tipCount + i).getHeight();
+        }
+        int ancestorCount = 0;
+        for (int i = 0; i < tipCount; i++) {
+            Node node = tree.getNode(i);
+            if (SAModel && node.isDirectAncestor()) {
+                ancestorHeights[ancestorCount++] = node.getHeight();
+            }
+        }
+        Arrays.sort(internalHeights, 0, internalCount);
+        Arrays.sort(ancestorHeights, 0, ancestorCount);
+
+        lineageCounts[0] = 0;
+        sampledAncestorCounts[0] = 0;
+
+        // times are increasing, so the height at which lineages are counted decreases with j
+        // and the number of nodes above that height can only go up
+        int internalAbove = 0, tipsAbove = 0, ancestorsAbove = 0;
+        for (int j = 1; j < totalIntervals; j++) {
+            double time = times[totalIntervals - 1] - times[j - 1];
+            if (!SAModel) {
+                while (internalAbove < internalCount && internalHeights[internalCount - 1 - internalAbove] > time) {
+                    internalAbove++;
+                }
+                while (tipsAbove < tipCount && sortedTipHeights[tipCount - 1 - tipsAbove] >= time) {
+                    tipsAbove++;
+                }
+                lineageCounts[j] = 1 + internalAbove - tipsAbove;
+            } else {
+                while (internalAbove < internalCount && internalHeights[internalCount - 1 - internalAbove] >= time) {
+                    internalAbove++;
+                }
+                while (tipsAbove < tipCount && sortedTipHeights[tipCount - 1 - tipsAbove] > time) {
+                    tipsAbove++;
+                }
+                while (ancestorsAbove < ancestorCount && ancestorHeights[ancestorCount - 1 - ancestorsAbove] > time) {
+                    ancestorsAbove++;
+                }
+                int k = countAtTime(ancestorHeights, ancestorCount - ancestorsAbove, ancestorCount, time);
+                lineageCounts[j] = 1 + internalAbove - tipsAbove
+                        - countAtTime(sortedTipHeights, tipCount - tipsAbove, tipCount, time) - k;
+                sampledAncestorCounts[j] = k;
+            }
+        }
+    }
+
+    /**
+     * @return number of heights within 1e-10 of time, where heights[0..count) is sorted
+     * and split is the index of the first height larger than time
+     */
+    private static int countAtTime(double[] heights, int split, int count, double time) {
+        int atTime = 0;
+        for (int i = split - 1; i >= 0 && Math.abs(heights[i] - time) < 1e-10; i--) {
+            atTime++;
+        }
+        for (int i = split; i < count && Math.abs(heights[i] - time) < 1e-10; i++) {
+            atTime++;
+        }
+        return atTime;
+    }
 
-        Double[] R = reproductiveNumberInput.get().getValues(); // if SAModel: reproductiveNumber = lambda/delta
-        Double[] b = becomeUninfectiousRate.get().getValues(); // delta = mu + psi*r
-        Double[] p = samplingProportion.get().getValues(); // if SAModel: s = psi/(mu+psi)
-        Double[] removalProbabilities = new Double[1];
-        if (SAModel) removalProbabilities = removalProbability.get().getValues();
+    protected void transformParameters() {
 
-        birth = new Double[totalIntervals];
-        death = new Double[totalIntervals];
-        psi = new Double[totalIntervals];
-        if (SAModel) r =  new Double[totalIntervals];
+        RealParameter R = reproductiveNumberInput.get(); // if SAModel: reproductiveNumber = lambda/delta
+        RealParameter b = becomeUninfectiousRate.get(); // delta = mu + psi*r
+        RealParameter p = samplingProportion.get(); // if SAModel: s = psi/(mu+psi)
+        RealParameter removalProbabilities = removalProbability.get();
 
-        if (isBDSIR()) birth[0] = R[0] * b[0]; // the rest will be done in BDSIR class
+        if (isBDSIR()) birth[0] = R.getArrayValue(0) * b.getArrayValue(0); // the rest will be done in BDSIR class
 
         for (int i = 0; i < totalIntervals; i++) {
+            double b_i = b.getArrayValue(deathChanges > 0 ? deathIndex[i] : 0);
+            double p_i = p.getArrayValue(samplingChanges > 0 ? samplingIndex[i] : 0);
             if (!SAModel) {
-                if (!isBDSIR()) birth[i] = R[birthChanges > 0 ? index(times[i], birthRateChangeTimes) : 0] * b[deathChanges > 0 ? index(times[i], deathRateChangeTimes) : 0];
-                psi[i] = p[samplingChanges > 0 ? index(times[i], samplingRateChangeTimes) : 0] * b[deathChanges > 0 ? index(times[i], deathRateChangeTimes) : 0];
-                death[i] = b[deathChanges > 0 ? index(times[i], deathRateChangeTimes) : 0] - psi[i];
+                if (!isBDSIR()) birth[i] = R.getArrayValue(birthChanges > 0 ? birthIndex[i] : 0) * b_i;
+                psi[i] = p_i * b_i;
+                death[i] = b_i - psi[i];
             } else {
-                birth[i] = R[birthChanges > 0 ? index(times[i], birthRateChangeTimes) : 0] * b[deathChanges > 0 ? index(times[i], deathRateChangeTimes) : 0];
-                r[i] = removalProbabilities[rChanges > 0 ? index(times[i], rChangeTimes) : 0];
-                psi[i] = p[samplingChanges > 0 ? index(times[i], samplingRateChangeTimes) : 0] * b[deathChanges > 0 ? index(times[i], deathRateChangeTimes) : 0]
-                        / (1+(r[i]-1)*p[samplingChanges > 0 ? index(times[i], samplingRateChangeTimes) : 0]);
-                death[i] = b[deathChanges > 0 ? index(times[i], deathRateChangeTimes) : 0] - psi[i]*r[i];
+                birth[i] = R.getArrayValue(birthChanges > 0 ? birthIndex[i] : 0) * b_i;
+                r[i] = removalProbabilities.getArrayValue(rChanges > 0 ? rIndex[i] : 0);
+                psi[i] = p_i * b_i / (1+(r[i]-1)*p_i);
+                death[i] = b_i - psi[i]*r[i];
             }
         }
     }
 
     protected void transformParameters_d_r_s() {
 
-        birth = new Double[totalIntervals];
-        death = new Double[totalIntervals];
-        psi = new Double[totalIntervals];
-        if (SAModel) r =  new Double[totalIntervals];
-
         /* nd = lambda - mu - r * psi         lambda = nd / (1 - to)
            to = (mu + r * psi) / lambda  -->  psi = lambda * to * sp / (1 - sp + r * sp)
            sp = psi / (mu + psi)              mu = lambda * to - r * psi
            SAModel: 0 <= r < 1;  No SA: r = 1
            Relation to transform: nd = (R0 - 1) * delta, to = 1/R0, sp = s  */
-        Double[] to = turnOver.get().getValues();
-        Double[] sp = samplingProportion.get().getValues();
+        RealParameter to = turnOver.get();
+        RealParameter sp = samplingProportion.get();
 
         if (netDiversification.get() != null) {  // netdiversification-turnover-samplingproportion parametrization
-            Double[] nd = netDiversification.get().getValues();
+            RealParameter nd = netDiversification.get();
             for (int i = 0; i < totalIntervals; i++) {
-                birth[i] = nd[index(times[i], birthRateChangeTimes)] / (1 - to[index(times[i], deathRateChangeTimes)]);
+                birth[i] = nd.getArrayValue(birthIndex[i]) / (1 - to.getArrayValue(deathIndex[i]));
             }
         } else {  // lambda-turnover-samplingproportion parametrization
-            Double[] br = birthRate.get().getValues();
+            RealParameter br = birthRate.get();
             for (int i = 0; i < totalIntervals; i++) {
-                birth[i] = br[index(times[i], birthRateChangeTimes)];
+                birth[i] = br.getArrayValue(birthIndex[i]);
             }
         }
 
         if (SAModel) {
-            Double[] rp = removalProbability.get().getValues();
+            RealParameter rp = removalProbability.get();
             for (int i = 0; i < totalIntervals; i++) {
-                r[i] = rp[index(times[i], rChangeTimes)];
-                psi[i] = birth[i] * to[index(times[i], deathRateChangeTimes)] / (1 / sp[index(times[i], samplingRateChangeTimes)] - 1 + r[i]);
-                death[i] = birth[i] * to[index(times[i], deathRateChangeTimes)] - r[i] * psi[i];
+                r[i] = rp.getArrayValue(rIndex[i]);
+                psi[i] = birth[i] * to.getArrayValue(deathIndex[i]) / (1 / sp.getArrayValue(samplingIndex[i]) - 1 + r[i]);
+                death[i] = birth[i] * to.getArrayValue(deathIndex[i]) - r[i] * psi[i];
             }
         } else {
             for (int i = 0; i < totalIntervals; i++) {
-                psi[i] = birth[i] * to[index(times[i], deathRateChangeTimes)] * sp[index(times[i], samplingRateChangeTimes)];
-                death[i] = birth[i] * to[index(times[i], deathRateChangeTimes)] - psi[i];
+                psi[i] = birth[i] * to.getArrayValue(deathIndex[i]) * sp.getArrayValue(samplingIndex[i]);
+                death[i] = birth[i] * to.getArrayValue(deathIndex[i]) - psi[i];
             }
         }
     }
@@ -988,9 +1274,6 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
             return Double.NEGATIVE_INFINITY;
         }
 
-        // number of lineages at each time ti
-        int[] n = new int[totalIntervals];
-
         int index = 0;
         if (times[index] < 0.)
             index = index(0.);
@@ -1047,65 +1330,99 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
 
         if (printTempResults) System.out.println("first factor for origin = " + temp);
 
-        // first product term in f[T]
-        for (int i = 0; i < tree.getInternalNodeCount(); i++) {
-
-            double x = times[totalIntervals - 1] - tree.getNode(nTips + i).getHeight();
-            index = index(x);
-            if (!(tree.getNode(nTips + i)).isFake()) {
-                temp = Math.log(birth[index]) + log_q(index, times[index], x);
-                logP += temp;
-                if (printTempResults) System.out.println("1st pwd" +
-                        " = " + temp + "; interval = " + i);
-                if (Double.isInfinite(logP))
-                    return logP;
+        allocateBatchArrays(Math.max(tree.getNodeCount(), totalIntervals));
+        int[] epochs = batchEpochs;
+        double[] logQ = batchLogQ;
+        double[] nodeP0 = batchP0;
+
+        // number of lineages n[j] and sampled ancestors k[j] at each time ti for the last product term.
+        // This also sorts internal node heights and makes sure tip heights are sorted,
+        // so nodes can be assigned to intervals by a sweep over the sorted heights
+        countLineages(tree);
+        int internalCount = tree.getInternalNodeCount();
+        double t_m = times[totalIntervals - 1];
+
+        // first product term in f[T], in order of increasing time from the origin
+        int count = 0;
+        boolean hasFakeNodes = false;
+        for (int i = 0; i < internalCount && !hasFakeNodes; i++) {
+            hasFakeNodes = tree.getNode(nTips + i).isFake();
+        }
+        if (!hasFakeNodes) {
+            for (int i = internalCount - 1; i >= 0; i--) {
+                batchTimes[count++] = t_m - internalHeights[i];
             }
+        } else {
+            for (int i = 0; i < internalCount; i++) {
+                if (!(tree.getNode(nTips + i)).isFake()) {
+                    batchTimes[count++] = t_m - tree.getNode(nTips + i).getHeight();
+                }
+            }
+            Arrays.sort(batchTimes, 0, count);
+        }
+        sweepEpochs(batchTimes, count, epochs);
+        logQAndP0(epochs, batchTimes, count, logQ, null);
+        for (int i = 0; i < count; i++) {
+            temp = logBirth[epochs[i]] + logQ[i];
+            logP += temp;
+            if (printTempResults) System.out.println("1st pwd" +
+                    " = " + temp + "; interval = " + i);
+            if (Double.isInfinite(logP))
+                return logP;
         }
 
-        // middle product term in f[T]
-        for (int i = 0; i < nTips; i++) {
-
+        // middle product term in f[T], tips in order of increasing time from the origin
+        int[] tipNrs = batchNodes;
+        count = 0;
+        for (int j = nTips - 1; j >= 0; j--) {
+            int i = tipOrder[j];
             if (!isRhoTip[i] || m_rho.get() == null) {
-                double y = times[totalIntervals - 1] - tree.getNode(i).getHeight();
-                index = index(y);
-
-                if (!(tree.getNode(i)).isDirectAncestor()) {
-                    if (!SAModel) {
-                        temp = Math.log(psi[index]) - log_q(index, times[index], y);
-                    } else {
-                        temp = Math.log(psi[index] * (r[index] + (1 - r[index]) * p0(index, times[index], y))) - log_q(index, times[index], y);
-                    }
-                    logP += temp;
-                    if (printTempResults) System.out.println("2nd PI = " + temp);
-                    if (psi[index] == 0 || Double.isInfinite(logP))
-                        return logP;
+                batchTimes[count] = t_m - sortedTipHeights[j];
+                tipNrs[count] = i;
+                count++;
+            }
+        }
+        sweepEpochs(batchTimes, count, epochs);
+        logQAndP0(epochs, batchTimes, count, logQ, SAModel ? nodeP0 : null);
+        for (int j = 0; j < count; j++) {
+            int i = tipNrs[j];
+            index = epochs[j];
+
+            if (!(tree.getNode(i)).isDirectAncestor()) {
+                if (!SAModel) {
+                    temp = logPsi[index] - logQ[j];
                 } else {
-                    if (r[index] != 1) {
-                        logP += Math.log((1 - r[index])*psi[index]);
-                        if (Double.isInfinite(logP)) {
-                            return logP;
-                        }
-                    } else {
-                        //throw new Exception("There is a sampled ancestor in the tree while r parameter is 1");
-                        System.out.println("There is a sampled ancestor in the tree while r parameter is 1");
-                        System.exit(0);
+                    temp = Math.log(psi[index] * (r[index] + (1 - r[index]) * nodeP0[j])) - logQ[j];
+                }
+                logP += temp;
+                if (printTempResults) System.out.println("2nd PI = " + temp);
+                if (psi[index] == 0 || Double.isInfinite(logP))
+                    return logP;
+            } else {
+                if (r[index] != 1) {
+                    logP += Math.log((1 - r[index])*psi[index]);
+                    if (Double.isInfinite(logP)) {
+                        return logP;
                     }
+                } else {
+                    //throw new Exception("There is a sampled ancestor in the tree while r parameter is 1");
+                    System.out.println("There is a sampled ancestor in the tree while r parameter is 1");
+                    System.exit(0);
                 }
             }
         }
 
         // last product term in f[T], factorizing from 1 to m //
-        double time;
+        int[] n = lineageCounts;
+        int[] k = sampledAncestorCounts;
+        for (int j = 0; j < totalIntervals; j++) {
+            batchTimes[j] = j < 1 ? 0 : times[j - 1];
+            epochs[j] = j;
+        }
+        logQAndP0(epochs, batchTimes, totalIntervals, logQ, SAModel ? nodeP0 : null);
         for (int j = 0; j < totalIntervals; j++) {
-            time = j < 1 ? 0 : times[j - 1];
-            int[] k = {0};
-            if (!SAModel) {
-                n[j] = ((j == 0) ? 0 : lineageCountAtTime(times[totalIntervals - 1] - time, tree));
-            } else {
-                n[j] = ((j == 0) ? 0 : lineageCountAtTime(times[totalIntervals - 1] - time, tree, k));
-            }
             if (n[j] > 0) {
-                temp = n[j] * (log_q(j, times[j], time) + Math.log(1 - rho[j-1]));
+                temp = n[j] * (logQ[j] + Math.log(1 - rho[j-1]));
                 logP += temp;
                 if (printTempResults)
                     System.out.println("3rd factor (nj loop) = " + temp + "; interval = " + j + "; n[j] = " + n[j]);//+ "; Math.log(g(j, times[j], time)) = " + Math.log(g(j, times[j], time)));
@@ -1115,8 +1432,8 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
             }
 
             if (SAModel && j>0 && N != null) { // term for sampled leaves and two-degree nodes at time t_i
-                logP += k[0] * (log_q(j, times[j], time) + Math.log(1-r[j])) + //here g(j,..) corresponds to q_{i+1}, r[j] to r_{i+1},
-                        (N[j-1]-k[0])*(Math.log(r[j]+ (1-r[j])*p0(j, times[j], time))); //N[j-1] to N_i, k[0] to K_i,and thus N[j-1]-k[0] to M_i
+                logP += k[j] * (logQ[j] + Math.log(1-r[j])) + //here g(j,..) corresponds to q_{i+1}, r[j] to r_{i+1},
+                        (N[j-1]-k[j])*(Math.log(r[j]+ (1-r[j])*nodeP0[j])); //N[j-1] to N_i, k[j] to K_i,and thus N[j-1]-k[j] to M_i
                 if (Double.isInfinite(logP)) {
                     return logP;
                 }
@@ -1148,7 +1465,49 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
 
     @Override
     protected boolean requiresRecalculation() {
-        return true;
+        if (isDirty(birthRateChangeTimesInput) || isDirty(deathRateChangeTimesInput) ||
+                isDirty(samplingRateChangeTimesInput) || isDirty(removalProbabilityChangeTimesInput) ||
+                isDirty(intervalTimes) || isDirty(rhoSamplingTimes)) {
+            timesAreDirty = true;
+        }
+        if (isDirty(birthRateChangeTimesInput) || isDirty(deathRateChangeTimesInput) ||
+                isDirty(samplingRateChangeTimesInput) || isDirty(removalProbabilityChangeTimesInput) ||
+                isDirty(intervalTimes) || isDirty(rhoSamplingTimes) || isDirty(origin) ||
+                isDirty(birthRate) || isDirty(deathRate) || isDirty(samplingRate) ||
+                isDirty(removalProbability) || isDirty(m_rho) ||
+                isDirty(reproductiveNumberInput) || isDirty(becomeUninfectiousRate) || isDirty(samplingProportion) ||
+                isDirty(netDiversification) || isDirty(turnOver)) {
+            ratesAreDirty = true;
+            return true;
+        }
+        if (isDirty(SATaxonInput)) {
+            return true;
+        }
+        TreeInterface tree = treeInput.get() != null ? treeInput.get() : treeIntervalsInput.get().treeInput.get();
+        return tree.somethingIsDirty();
+    }
+
+    private boolean isDirty(Input<? extends StateNode> input) {
+        return input.get() != null && input.get().somethingIsDirty();
+    }
+
+    @Override
+    public void store() {
+        super.store();
+        ratesUpdatedSinceStore = false;
+        timesUpdatedSinceStore = false;
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+        // rates calculated since the last store may be based on parameter values that are now restored
+        if (ratesUpdatedSinceStore) {
+            ratesAreDirty = true;
+        }
+        if (timesUpdatedSinceStore) {
+            timesAreDirty = true;
+        }
     }
 
 //    @Override
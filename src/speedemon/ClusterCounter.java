@@ -5,6 +5,7 @@ import java.util.Arrays;
 
 import beast.base.core.BEASTObject;
 import beast.base.core.Description;
+import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.core.Input.Validate;
@@ -14,18 +15,20 @@ import beast.base.evolution.tree.TreeInterface;
 @Description("Allows logging of the number of clusters")
 public class ClusterCounter extends BEASTObject implements Loggable {
     final public Input<TreeInterface> treeInput = new Input<>("tree", "phylogenetic beast.tree with sequence data in the leafs", Validate.REQUIRED);
+    final public Input<Function> epsilonInput = new Input<>("epsilon", "threshold below which taxa are deemed to be clustered. "
+    		+ "If not specified, the threshold of the collapse model the tree is used in is taken");
 
     
-	private TreeInterface tree;
+	protected TreeInterface tree;
+	private Function epsilon;
 	private int [] map;
-	private boolean [] done;
 	
 	
 	@Override
 	public void initAndValidate() {
 		tree = treeInput.get();
-		map = new int[tree.getLeafNodeCount()];
-		done = new boolean[tree.getLeafNodeCount()];
+		epsilon = epsilonInput.get();
+		map = new int[tree.getNodeCount()];
 	}
 
 	@Override
@@ -35,7 +38,7 @@ public class ClusterCounter extends BEASTObject implements Loggable {
 
 	@Override
 	public void log(long sample, PrintStream out) {
-		int k = countClusters(tree, map, done);
+		int k = countClusters(tree, map, getEpsilon());
 		out.append(k + "\t");
 	}
 	
@@ -43,42 +46,49 @@ public class ClusterCounter extends BEASTObject implements Loggable {
 	public void close(PrintStream out) {
 	}
 
+	/**
+	 * @return threshold, which is resolved at first use, when all models the tree is used in are initialised
+	 */
+	protected double getEpsilon() {
+		if (epsilon == null) {
+			epsilon = ThresholdModel.resolveEpsilon(tree);
+		}
+		return epsilon.getArrayValue();
+	}
+
 	
-	public static int countClusters(TreeInterface tree, int [] map, boolean [] done) {
+	/**
+	 * Labels nodes by the cluster they are in, where taxa are in the same cluster if they
+	 * coalesce at or below epsilon. Clusters are numbered in order of their lowest leaf number.
+	 * Runs in O(nodes) without recursion or allocation: every leaf walks up to the
+	 * highest ancestor at or below epsilon, stopping early at nodes labelled by an earlier leaf.
+	 * 
+	 * @param cluster buffer of at least tree.getNodeCount() entries. On return, cluster[i] is the cluster
+	 * of leaf i, and of internal node i if it is at or below epsilon, or -1 for internal nodes above epsilon.
+	 * @return number of clusters
+	 */
+	public static int countClusters(TreeInterface tree, int [] cluster, double epsilon) {
 		Node [] nodes = tree.getNodesAsArray();
-		
-		Arrays.fill(map, -1);
-		Arrays.fill(done, false);
+		Arrays.fill(cluster, 0, tree.getNodeCount(), -1);
 
 		int k = 0;
 		for (int i = 0; i < tree.getLeafNodeCount(); i++) {
-			if (!done[i]) {
-				if (nodes[i].getHeight() > ClusterTreeSetAnalyser.EPSILON) {
-					map[i] = k;
-					done[i] = true;
-				} else {
-					// nodes[i] is part of a cluster
-					Node node = nodes[i];
-					while (!node.getParent().isRoot() && node.getHeight() <= ClusterTreeSetAnalyser.EPSILON) {
-						node = node.getParent();
-					}
-					visit(node,k,map,done);
+			Node top = nodes[i];
+			while (cluster[top.getNr()] < 0 && !top.isRoot() && top.getParent().getHeight() <= epsilon) {
+				top = top.getParent();
+			}
+			int label = cluster[top.getNr()];
+			if (label < 0) {
+				label = k++;
+			}
+			// label path from leaf up to top, all unlabelled apart from possibly top
+			for (Node node = nodes[i]; cluster[node.getNr()] < 0; node = node.getParent()) {
+				cluster[node.getNr()] = label;
+				if (node == top) {
+					break;
 				}
-				k++;
 			}
 		}
 		return k;
 	}
-
-	private static void visit(Node node, int k, int[] map, boolean[] done) {
-		if (node.isLeaf()) {
-			int i = node.getNr();
-			map[i] = k;
-			done[i] = true;
-		} else {
-			for (Node child : node.getChildren()) {
-				visit(child, k, map, done);
-			}
-		}
-	}
 }
@@ -0,0 +1,147 @@
+package speedemon;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Logger;
+
+@Description("Logs the number of clusters, and writes the cluster each taxon is in for every logged sample to a binary file "
+		+ "that can be summarised by ClusterTreeSetAnalyser without logging trees. When resuming a run, samples are appended to the file")
+public class ClusterMembershipLogger extends ClusterCounter {
+	final public Input<String> fileInput = new Input<>("file", "name of file to write cluster memberships to", Validate.REQUIRED);
+
+	/**
+	 * File format, all big endian as written by DataOutputStream:
+	 * int MAGIC, int number of taxa n, n taxon names as modified UTF-8 in alphabetical order,
+	 * then for every sample a long with the sample number followed by n cluster labels as unsigned LEB128 varints.
+	 * Labels are canonical: taxa are in alphabetical order, and clusters are numbered in order of their first taxon,
+	 * so equal partitions have equal label vectors.
+	 */
+	final static int MAGIC = 0x53434d31; // "SCM1"
+
+	private DataOutputStream file;
+	// nrOfTaxon[i] is the node nr of the i-th taxon in alphabetical order
+	private int [] nrOfTaxon;
+	// node labels as calculated by countClusters, and map to canonical labels
+	private int [] clusters, canonical;
+	private byte [] record;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		int n = tree.getLeafNodeCount();
+		String [] taxa = new String[n];
+		for (int i = 0; i < n; i++) {
+			taxa[i] = tree.getNode(i).getID();
+		}
+		Arrays.sort(taxa);
+		nrOfTaxon = new int[n];
+		for (int i = 0; i < n; i++) {
+			nrOfTaxon[Arrays.binarySearch(taxa, tree.getNode(i).getID())] = i;
+		}
+		clusters = new int[tree.getNodeCount()];
+		canonical = new int[n];
+		// at most 5 bytes per label
+		record = new byte[n * 5];
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		super.init(out);
+		openFile(Logger.FILE_MODE == Logger.LogFileMode.resume);
+	}
+
+	/**
+	 * Open the file and write the header, or when resuming append to the file written before,
+	 * as BEAST does with its own log files
+	 */
+	private void openFile(boolean resume) {
+		File f = new File(fileInput.get());
+		try {
+			if (resume && f.exists() && f.length() > 0) {
+				long length;
+				try (ClusterMembershipReader reader = new ClusterMembershipReader(f)) {
+					String [] taxa = reader.getTaxa();
+					boolean sameTaxa = taxa.length == nrOfTaxon.length;
+					for (int i = 0; i < taxa.length && sameTaxa; i++) {
+						sameTaxa = taxa[i].equals(tree.getNode(nrOfTaxon[i]).getID());
+					}
+					if (!sameTaxa) {
+						throw new IllegalArgumentException("Cannot resume: taxa in " + f.getPath() + " differ from those of the tree");
+					}
+					while (reader.next()) {
+					}
+					length = reader.getLength();
+				}
+				// drop a sample cut short when the run was stopped
+				try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+					raf.setLength(length);
+				}
+				file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, true)));
+				return;
+			}
+			file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+			file.writeInt(MAGIC);
+			file.writeInt(nrOfTaxon.length);
+			for (int nr : nrOfTaxon) {
+				file.writeUTF(tree.getNode(nr).getID());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write cluster memberships to " + fileInput.get() + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		if (file == null) {
+			// loggers are not initialised when resuming, since their headers are already in the log
+			openFile(true);
+		}
+		int k = countClusters(tree, clusters, getEpsilon());
+		out.append(k + "\t");
+
+		Arrays.fill(canonical, 0, k, -1);
+		int next = 0;
+		int length = 0;
+		for (int nr : nrOfTaxon) {
+			int label = canonical[clusters[nr]];
+			if (label < 0) {
+				label = next++;
+				canonical[clusters[nr]] = label;
+			}
+			while (label >= 0x80) {
+				record[length++] = (byte) (label | 0x80);
+				label >>>= 7;
+			}
+			record[length++] = (byte) label;
+		}
+		try {
+			file.writeLong(sample);
+			file.write(record, 0, length);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write cluster memberships to " + fileInput.get() + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		super.close(out);
+		if (file == null) {
+			return;
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not close " + fileInput.get() + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package speedemon;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads files written by ClusterMembershipLogger one sample at a time.
+ * A record cut short, e.g. by a run that is still going, is treated as the end of the file.
+ */
+public class ClusterMembershipReader implements Closeable {
+
+	private DataInputStream in;
+	private CountingInputStream counter;
+	// number of bytes of the header and the complete samples read so far
+	private long length;
+	// taxa in alphabetical order
+	private String [] taxa;
+	private long sample;
+	private int [] labels;
+	private int clusterCount;
+
+	public ClusterMembershipReader(File file) throws IOException {
+		counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+		in = new DataInputStream(counter);
+		if (in.readInt() != ClusterMembershipLogger.MAGIC) {
+			in.close();
+			throw new IllegalArgumentException(file.getPath() + " is not a cluster membership file");
+		}
+		taxa = new String[in.readInt()];
+		for (int i = 0; i < taxa.length; i++) {
+			taxa[i] = in.readUTF();
+		}
+		labels = new int[taxa.length];
+		length = counter.count;
+	}
+
+	/** read next sample, @return false if there are no more samples **/
+	public boolean next() throws IOException {
+		try {
+			sample = in.readLong();
+			clusterCount = 0;
+			for (int i = 0; i < labels.length; i++) {
+				int label = 0;
+				int shift = 0;
+				int b;
+				do {
+					b = in.readUnsignedByte();
+					label |= (b & 0x7f) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				labels[i] = label;
+				clusterCount = Math.max(clusterCount, label + 1);
+			}
+			length = counter.count;
+			return true;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	/** @return taxon names, in the order of labels **/
+	public String [] getTaxa() {
+		return taxa;
+	}
+
+	public long getSample() {
+		return sample;
+	}
+
+	/** @return cluster of each taxon of the current sample, which is overwritten by next() **/
+	public int [] getLabels() {
+		return labels;
+	}
+
+	public int getClusterCount() {
+		return clusterCount;
+	}
+
+	/** @return number of bytes of the header and of the samples read so far, excluding a sample cut short **/
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/** counts bytes read through it **/
+	private static class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte [] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
@@ -1,11 +1,9 @@
 package speedemon;
 
-import java.math.BigDecimal;
-import java.math.BigInteger;
-import java.math.MathContext;
-import java.util.*;
+import java.util.Arrays;
 
 import beast.base.core.Description;
+import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.inference.Operator;
 import beast.base.core.Input.Validate;
@@ -16,10 +14,15 @@ import beast.base.util.Randomizer;
 @Description("Reversible jump a tree to collapse/expand its leaf branches")
 public class ClusterOperator extends Operator {
     final public Input<TreeInterface> treeInput = new Input<>("tree", "phylogenetic beast.tree with sequence data in the leafs", Validate.REQUIRED);
+    final public Input<Function> epsilonInput = new Input<>("epsilon", "threshold below which taxa are deemed to be clustered. "
+    		+ "If not specified, the threshold of the collapse model the tree is used in is taken");
 
 	private TreeInterface tree;
+	private Function epsilon;
 	private int [] map;
 	private boolean [] clustered;
+	// buffer for split candidates
+	private int [] candidates;
 	
 	
 	private double [] logHR;
@@ -27,187 +30,164 @@ public class ClusterOperator extends Operator {
 	@Override
 	public void initAndValidate() {
 		tree = treeInput.get();
-		map = new int[tree.getLeafNodeCount()];
+		epsilon = epsilonInput.get();
+		map = new int[tree.getNodeCount()];
 		clustered = new boolean[tree.getNodeCount()];
+		candidates = new int[tree.getNodeCount()];
 
 		
-		int n = tree.getLeafNodeCount();
-		
-		// treecount[k] = number of trees with k taxa 
-		BigInteger [] treecount = new BigInteger[n+1];
-		treecount[0] = BigInteger.ZERO;
-		treecount[1] = BigInteger.ONE;
-		long t = 1l;
-		for (int k = 0; k < n-1; k++) {
-			if (t < 0) {
-				throw new IllegalArgumentException("Too many taxa leading to overflow");
+		logHR = getLogHR(tree.getLeafNodeCount());
+	}
+
+	
+	/**
+	 * @return table with logHR[k] = log(treecount[k+1]/treecount[k]) for 0 < k < n, where
+	 * treecount[k] = S2(n,k) * (number of ranked tree topologies with k taxa) is the number of
+	 * trees with k clusters, and S2 are Stirling numbers of the second kind.
+	 */
+	static double [] getLogHR(int n) {
+		double [] logHR = new double[n+1];
+		double [] logRatio = logStirling2Ratios(n);
+		for (int k = 1; k < n; k++) {
+			// # (ranked) tree topologies grows by a factor (k+1) * k/2 when adding a taxon
+			logHR[k] = logRatio[k+1] + Math.log((k+1) * (double) k/2);
+		}
+		return logHR;
+	}
+
+	/**
+	 * @return log(S2(n,k)/S2(n,k-1)) at index k for 1 < k <= n.
+	 * Uses the Stirling recurrence S2(m,k) = k S2(m-1,k) + S2(m-1,k-1) rewritten for the ratio 
+	 * r(m,k) = S2(m,k)/S2(m,k-1), which gives r(m,k) = (k r(m-1,k) + 1) / (k - 1 + 1/r(m-1,k-1)).
+	 * All terms are positive, so there is no cancellation. Ratios decrease in k, and the ratios 
+	 * for small k that grow too large for a double are kept as logarithms.
+	 * Since 1 and 1/r(m-1,k-1) are negligible for such large ratios, these are updated by 
+	 * adding log(k/(k-1)).
+	 */
+	private static double [] logStirling2Ratios(int n) {
+		// ratio[k] for k > logEnd, its logarithm for 1 < k <= logEnd
+		double [] ratio = new double[n+1];
+		int logEnd = 1;
+		double [] logStep = new double[n+1];
+		for (int k = 2; k <= n; k++) {
+			logStep[k] = Math.log(k / (k - 1.0));
+		}
+		// ratio[k] = r(1,k) = 0 for k > 1
+		for (int m = 2; m <= n; m++) {
+			// in place from high to low k, so ratio[k-1] still holds r(m-1,k-1)
+			for (int k = m; k > logEnd + 1; k--) {
+				ratio[k] = (k * ratio[k] + 1) / (k - 1 + 1 / ratio[k-1]);
+			}
+			int k = logEnd + 1;
+			// r(m-1,1) is infinite since S2(m-1,0) = 0
+			double inverse = k == 2 ? 0 : Math.exp(-ratio[k-1]);
+			ratio[k] = (k * ratio[k] + 1) / (k - 1 + inverse);
+			for (k = 2; k <= logEnd; k++) {
+				ratio[k] += logStep[k];
+			}
+			while (logEnd < m && ratio[logEnd+1] > 1e200) {
+				logEnd++;
+				ratio[logEnd] = Math.log(ratio[logEnd]);
 			}
-			// # (unranked) tree topologies
-			// t = t*(2*(k+2)-3);
-			
-			// # (ranked) tree topologies
-			t = ((k+1) * (k+2)/2) * t;
-			BigInteger s2 = sterling2(n, k+2);
-			treecount[k+2] = s2.multiply(new BigInteger(t+""));
-			// treecount[k+2] = new BigInteger(t+"");
 		}
-		logHR = new double[n+1];
-		for (int k = 1; k < n; k++) {
-			BigDecimal d = new BigDecimal(treecount[k+1]).divide(new BigDecimal(treecount[k]), MathContext.DECIMAL32);
-			logHR[k] = Math.log(d.doubleValue());
+		for (int k = logEnd + 1; k <= n; k++) {
+			ratio[k] = Math.log(ratio[k]);
 		}
-		
-		System.out.println(Arrays.toString(treecount));
-		System.out.println(Arrays.toString(logHR));
+		return ratio;
 	}
 
 	
-	private static Map<String,BigInteger> COMPUTED = new HashMap<>();
-	// from https://rosettacode.org/wiki/Stirling_numbers_of_the_second_kind#Java
-    private static final BigInteger sterling2(int n, int k) {
-        String key = n + "," + k;
-        if ( COMPUTED.containsKey(key) ) {
-            return COMPUTED.get(key);
-        }
-        if ( n == 0 && k == 0 ) {
-            return BigInteger.valueOf(1);
-        }
-        if ( (n > 0 && k == 0) || (n == 0 && k > 0) ) {
-            return BigInteger.ZERO; 
-        }
-        if ( n == k ) {
-            return BigInteger.valueOf(1);
-        }
-        if ( k > n ) {
-            return BigInteger.ZERO;
-        }
-        BigInteger result = BigInteger.valueOf(k).multiply(sterling2(n-1, k)).add(sterling2(n-1, k-1));
-        COMPUTED.put(key, result);
-        return result;
-    }
-    
-    
+	/**
+	 * @return threshold, which is resolved at first use, when all models the tree is used in are initialised
+	 */
+	private double getEpsilon() {
+		if (epsilon == null) {
+			epsilon = ThresholdModel.resolveEpsilon(tree);
+		}
+		return epsilon.getArrayValue();
+	}
+
 	@Override
 	public double proposal() {
         final TreeInterface tree = treeInput.get();
+        final double epsilon = getEpsilon();
 
-        List<Node> mergeCandidates = new ArrayList<>();
-        List<Node> splitCandidates = new ArrayList<>();
 		boolean doSplit = Randomizer.nextBoolean();
 		Node [] nodes = tree.getNodesAsArray();
+		int leafCount = tree.getLeafNodeCount();
+		int nodeCount = tree.getNodeCount();
 
-
-		
+		int k = ClusterCounter.countClusters(tree, map, epsilon);
+		// clustered[i] is true if internal node i has a child with branch length at most epsilon
 		Arrays.fill(clustered, false);
-		int  k = ClusterCounter.countClusters(tree, map, clustered);
-		for (int i = 0; i < tree.getNodeCount() - 1; i++) {
-			if (nodes[i].getLength() <= ClusterTreeSetAnalyser.EPSILON) {
+		for (int i = 0; i < nodeCount - 1; i++) {
+			if (nodes[i].getLength() <= epsilon) {
 				clustered[nodes[i].getParent().getNr()] = true;
 			}
 		}
 		
-		if (k == tree.getLeafNodeCount() && doSplit) {
+		if (k == leafCount && doSplit) {
 			return Double.NEGATIVE_INFINITY;
 		} else if (k == 2 && !doSplit) {
 			return Double.NEGATIVE_INFINITY;
 		}
 							
 		if (!doSplit) {
-			// merge
-			for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount() - 1; i++) {
+			// merge lowest ranked candidate
+			Node node = null;
+			for (int i = leafCount; i < nodeCount - 1; i++) {
 				Node left = nodes[i].getLeft();
 				Node right = nodes[i].getRight();
 				if ((left.isLeaf() || clustered[left.getNr()]) && 
 					(right.isLeaf() || clustered[right.getNr()]) && 
-					!clustered[i]) {
-					mergeCandidates.add(nodes[i]);
+					!clustered[i] &&
+					(node == null || nodes[i].getHeight() < node.getHeight())) {
+					node = nodes[i];
 				}
 			}
 
-			if (mergeCandidates.size() <= 0) {
+			if (node == null) {
 				throw new RuntimeException("Programmer error -- should not get here");
 				// return Double.NEGATIVE_INFINITY;
 			}
-			// Node node = mergeCandidates.get(Randomizer.nextInt(mergeCandidates.size()));
-			
-			// merge lowest ranked candidate
-			Node node = mergeCandidates.get(0);
-			for (Node c : mergeCandidates) {
-				if (c.getHeight() < node.getHeight()) {
-					node = c;
-				}
-			}
 			node.setHeight(node.getLeft().getHeight());
 
-			
-			clustered[node.getNr()] = true;
-			for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount() - 1; i++) {
-				node = nodes[i];
-				Node left = node.getLeft();
-				Node right = node.getRight();
-				if ((left.isLeaf() || clustered[left.getNr()]) && 
-					(right.isLeaf() || clustered[right.getNr()]) &&
-					clustered[node.getNr()] && 
-					node.getLength() > ClusterTreeSetAnalyser.EPSILON) {
-					splitCandidates.add(nodes[i]);
-				}
-			}		
-			
-			// j = number of ways to split
-			int j = 0;
-			for (Node n : splitCandidates) {
-				int m = n.getLeafNodeCount();
-				j += Math.pow(2,m-1) - 1;
-			}
-			j = 1;
-			// k * (k-1)/2) = number of ways to merge from k clusters = k choose 2
 			return -logHR[k-1];
-			// return -logHR[k-1] - (Math.log(j) - Math.log(k * (k-1)/2));
-			// return - Math.log(j);
 		} else {
 			// split
-			for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount() - 1; i++) {
+			int candidateCount = 0;
+			// lowest height above epsilon
+			double hMax = tree.getRoot().getHeight();
+			for (int i = leafCount; i < nodeCount; i++) {
 				Node node = nodes[i];
+				if (node.getHeight() > epsilon && node.getHeight() < hMax) {
+					hMax = node.getHeight();
+				}
+				if (i == nodeCount - 1) {
+					continue;
+				}
 				Node left = node.getLeft();
 				Node right = node.getRight();
 				if ((left.isLeaf() || clustered[left.getNr()]) && 
 					(right.isLeaf() || clustered[right.getNr()]) &&
-					clustered[node.getNr()] && 
-					node.getLength() > ClusterTreeSetAnalyser.EPSILON) {
-					splitCandidates.add(nodes[i]);
+					clustered[i] && 
+					node.getLength() > epsilon) {
+					candidates[candidateCount++] = i;
 				}
 			}		
 
-			if (splitCandidates.size() == 0) {
+			if (candidateCount == 0) {
 				throw new RuntimeException("Programmer error -- should not get here");
 				// return Double.NEGATIVE_INFINITY;
 			}
-			Node node = splitCandidates.get(Randomizer.nextInt(splitCandidates.size()));
+			Node node = nodes[candidates[Randomizer.nextInt(candidateCount)]];
 
-			double hMax = tree.getRoot().getHeight();
-			for (Node n : tree.getInternalNodes()) {
-				if (n.getHeight() > ClusterTreeSetAnalyser.EPSILON && n.getHeight() < hMax) {
-					hMax = n.getHeight();
-				}
-			}			
 			//double h = node.getLeft().getHeight() + Randomizer.nextDouble() * node.getLength();
 			double h = node.getLeft().getHeight() + Randomizer.nextDouble() * hMax;
 			node.setHeight(h);
 			
-			// j = number of ways to split
-			int j = 0;
-			for (Node n : splitCandidates) {
-				int m = n.getLeafNodeCount();
-				j += Math.pow(2,m-1) - 1;
-			}
-			j = 1;
-			// (k+1) * k/2) = number of ways to merge from k+1 clusters = k+1 choose 2
 			return logHR[k];
-			// return logHR[k] + (Math.log(j) - Math.log((k+1) * k/2));
-			// return + Math.log(j);
 		}
-		
-
 	}
 
 }
@@ -1,12 +1,19 @@
 package speedemon;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import beastfx.app.tools.Application;
-import beastfx.app.treeannotator.TreeAnnotator;
-import beastfx.app.treeannotator.TreeAnnotator.FastTreeSet;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
 import beast.base.core.Citation;
@@ -28,24 +35,47 @@ import beast.base.evolution.tree.Tree;
 @Citation(value="Jordan Douglas and Remco Bouckaert. Quantitatively defining species boundaries with more efficiency and more biological realism. Communications Biology 5, 755 (2022)", DOI="110.1038/s42003-022-03723-z")
 public class ClusterTreeSetAnalyser extends beast.base.inference.Runnable {
 	public Input<TreeFile> treesInput = new Input<>("trees", "NEXUS file containing a tree set", new TreeFile("[[none]]"));
+	public Input<String> chainsInput = new Input<>("chains", "comma separated list of tree files of independent runs. If specified, trees is ignored, "
+			+ "burn-in is removed from each file, files are read concurrently when threads > 1, and agreement between runs is reported");
+	public Input<File> membershipInput = new Input<>("membership", "cluster membership file written by ClusterMembershipLogger. "
+			+ "If specified, clusters are summarised from this file instead of from the tree set, and topologies are not reported");
 	public Input<TreeFile> originalInput = new Input<>("original", "tree to check if it is in the 95% credible set");
 	public Input<OutFile> outputInput = new Input<>("out", "output file. Print to stdout if not specified", new OutFile("[[none]]"));
 	public Input<Boolean> verboseInput = new Input<>("verbose", "print out extra information while processing", true);
 	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees to used as burn-in (and will be ignored)", 10);
-	final public Input<Double> epsilonInput = new Input<>("epsilon", "threshold below which taxa are deemed to be clustered", EPSILON);
+	final public Input<Double> epsilonInput = new Input<>("epsilon", "threshold below which taxa are deemed to be clustered", 0.0);
+	final public Input<String> epsilonsInput = new Input<>("epsilons", "comma separated list of thresholds. If specified, epsilon is ignored and "
+			+ "cluster sets, numbers of clusters and pairs are summarised for each of these thresholds from a single pass over the tree set. "
+			+ "Topologies are not reported");
 	public Input<Boolean> printTailInput = new Input<>("printTail", "print out clades and clusters outside 95% credible set", true);
 	public Input<Integer> maxInput = new Input<>("max", "maximum number of trees/clusters to print out (if non-positive, "
 			+ "all available data will be printed). Ignored if printTail=true", -1);
+	public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to parse trees and extract topologies and clusters from them. "
+			+ "Output is the same as when using a single thread", 1);
+
+	public enum MatrixFormat {tsv, binary}
+	public Input<OutFile> matrixInput = new Input<>("matrix", "file to write matrix with proportion of trees in which pairs of taxa are in the same cluster to. "
+			+ "Not written if not specified");
+	public Input<MatrixFormat> matrixFormatInput = new Input<>("matrixFormat", "format of matrix file. "
+			+ "tsv: tab separated values with taxon names in first row and column. "
+			+ "binary: big endian int with number of taxa n, n taxon names as modified UTF-8, then n x n doubles in row major order",
+			MatrixFormat.tsv, MatrixFormat.values());
 
 	final static private String SPECIES_SEPARATOR = "___";
-	static public double EPSILON = 0;
+	// number of trees handed to a thread at a time when threads > 1
+	final static private int BATCH_SIZE = 1000;
+	// cluster sets and clusters are included in the ASDSF if their frequency is at least this in some chain
+	final static private double MIN_FREQUENCY = 0.1;
 	
 	@Override
 	public void initAndValidate() {
 	}
 
-	private double epsilon = EPSILON;
+	private double epsilon;
 	private int max;
+	// taxon numbers used in keys of topologies and clusters, which are in alphabetical order of taxonNames
+	private Map<String,Integer> taxonIndex;
+	private String [] taxonNames;
 	
 	@Override
 	public void run() throws Exception {
@@ -53,44 +83,42 @@ public class ClusterTreeSetAnalyser extends beast.base.inference.Runnable {
 			Log.setLevel(Log.Level.error);
 		}
 		epsilon = epsilonInput.get();
-		EPSILON = epsilon;
 		max = maxInput.get();
 		if (max <= 0) {
 			max = Integer.MAX_VALUE;
 		}
+		if (membershipInput.get() != null && !membershipInput.get().getName().equals("[[none]]")) {
+			summariseMemberships();
+			return;
+		}
 
-		
-		Map<String,Integer> treeMap = new HashMap<>();
-		Map<String,Integer> clusterMap = new HashMap<>();
-        FastTreeSet trees = new TreeAnnotator().new FastTreeSet(treesInput.get().getAbsolutePath(), burnInPercentageInput.get());
-        trees.reset();
-        double treeCount = 0;
-        while (trees.hasNext()) {
-            Tree tree = trees.next();
-            Node root = tree.getRoot();
-            root.sort();
-            String s = getShortTopology(root);
-            if (treeMap.containsKey(s)) {
-            	treeMap.put(s, treeMap.get(s) + 1);
-            } else {
-            	treeMap.put(s, 1);
-            }
-            
-            s = mapTree2Cluster(s);
-            
-            if (clusterMap.containsKey(s)) {
-            	clusterMap.put(s, clusterMap.get(s) + 1);
-            } else {
-            	clusterMap.put(s, 1);
-            }
-            treeCount++;
+
+        // burn-in is skipped without parsing, and trees are only parsed when counted or printed
+        List<File> files = getTreeFiles();
+        try (TreeSets trees = new TreeSets(files)) {
+        	taxonIndex = getTaxonIndex(trees.getTree(0));
+        	if (epsilonsInput.get() != null && epsilonsInput.get().trim().length() > 0) {
+        		sweepEpsilons(files, trees, getEpsilons());
+        	} else {
+        		summariseTrees(files, trees);
+        	}
         }
+	}
+
+	/** summarise topologies and cluster sets at threshold epsilon, and compare with the original tree **/
+	private void summariseTrees(List<File> files, TreeSets trees) throws Exception {
+		// topologies and cluster sets are identified by a hash of their canonical encoding,
+		// strings are only created for those that are printed, from the first tree they occur in
+		Map<Key,Count> treeMap = new LinkedHashMap<>();
+		Map<Key,Count> clusterMap = new LinkedHashMap<>();
+        double treeCount = trees.getTreeCount();
+        List<ChainCounts> chainCounts = countChains(trees, Arrays.asList(treeMap, clusterMap), null);
 		
 		
-        String [] clusterKeys = clusterMap.keySet().toArray(new String[] {});
+        Key [] clusterKeys = clusterMap.keySet().toArray(new Key[] {});
         Arrays.sort(clusterKeys, (a,b) -> {
-        	final int i1 = clusterMap.get(a);
-        	final int i2 = clusterMap.get(b);
+        	final int i1 = clusterMap.get(a).count;
+        	final int i2 = clusterMap.get(b).count;
         	if (i1 > i2) {
         		return -1;
         	} else if (i1 == i2) {
@@ -99,10 +127,10 @@ public class ClusterTreeSetAnalyser extends beast.base.inference.Runnable {
         	return 1;
         });
         
-        String [] treeKeys = treeMap.keySet().toArray(new String[] {});
+        Key [] treeKeys = treeMap.keySet().toArray(new Key[] {});
         Arrays.sort(treeKeys, (a,b) -> {
-        	final int i1 = treeMap.get(a);
-        	final int i2 = treeMap.get(b);
+        	final int i1 = treeMap.get(a).count;
+        	final int i2 = treeMap.get(b).count;
         	if (i1 > i2) {
         		return -1;
         	} else if (i1 == i2) {
@@ -117,7 +145,7 @@ public class ClusterTreeSetAnalyser extends beast.base.inference.Runnable {
         int coverageSetCount = 0;
         int k = 0;
         while (coverageSetCount < threshold && k < treeKeys.length) {
-        	coverageSetCount += treeMap.get(treeKeys[k++]);
+        	coverageSetCount += treeMap.get(treeKeys[k++]).count;
         }
         
         
@@ -126,17 +154,21 @@ public class ClusterTreeSetAnalyser extends beast.base.inference.Runnable {
         boolean hasOriginal = false;
         if (originalInput.get() != null && !originalInput.get().getName().equals("[[none]]")) {
         	hasOriginal = true;
-            FastTreeSet originalTrees = new TreeAnnotator().new FastTreeSet(originalInput.get().getAbsolutePath(), 0);
-            originalTrees.reset();
-            Tree originalTree = originalTrees.next();
-            originalTree.getRoot().sort();
-            String originalTopology = getShortTopology(originalTree.getRoot());
-            if (treeMap.containsKey(originalTopology)) {
+            Tree originalTree;
+            try (IndexedTreeSet originalTrees = new IndexedTreeSet(originalInput.get(), false)) {
+            	if (originalTrees.getTreeCount() == 0) {
+            		throw new IllegalArgumentException("No trees found in " + originalInput.get().getPath());
+            	}
+            	originalTree = originalTrees.getTree(0);
+            }
+            sortByTaxon(originalTree.getRoot());
+            Key originalTopology = new KeyBuilder(originalTree, taxonIndex).topologyKey(originalTree.getRoot());
+            if (originalTopology != null && treeMap.containsKey(originalTopology)) {
             	if (treeKeys.length == 1) {
             		originalIsInCredibleSet = true;
             	} else {
-            		int count = treeMap.get(originalTopology);
-            		if (count >= treeMap.get(treeKeys[k-1])) {
+            		int count = treeMap.get(originalTopology).count;
+            		if (count >= treeMap.get(treeKeys[k-1]).count) {
             			originalIsInCredibleSet = true;
             		}
             	}
@@ -162,9 +194,10 @@ public class ClusterTreeSetAnalyser extends beast.base.inference.Runnable {
         int i = 0;
         double cum = 0;
         out.println("\nsupport\t#taxa\ttopology");
-        for (String s : treeKeys) {
+        for (Key key : treeKeys) {
         	if (i <= k && i < max  || printTailInput.get()) {
-        		double percent = 100*treeMap.get(s)/treeCount;
+        		String s = getShortTopology(getRoot(trees, treeMap.get(key).firstTree));
+        		double percent = 100.0 * treeMap.get(key).count/treeCount;
         		cum += percent;
         		out.println(f.format(percent) + "%\t" + taxonCount(s) + "\t" + s.replaceAll(SPECIES_SEPARATOR, " + "));
             	if (i==k && printTailInput.get()) {
@@ -176,19 +209,51 @@ public class ClusterTreeSetAnalyser extends beast.base.inference.Runnable {
         out.println(f.format(cum) +"% displayed");
         
         
-        coverageSetCount = 0;
-        k = 0;
-        while (coverageSetCount < threshold && k < clusterKeys.length) {
-        	coverageSetCount += clusterMap.get(clusterKeys[k++]);
+        // cluster strings are needed for the individual cluster and pair statistics as well
+        String [] clusterStrings = new String[clusterKeys.length];
+        int [] clusterCounts = new int[clusterKeys.length];
+        for (int j = 0; j < clusterKeys.length; j++) {
+        	clusterStrings[j] = mapTree2Cluster(getShortTopology(getRoot(trees, clusterMap.get(clusterKeys[j]).firstTree)));
+        	clusterCounts[j] = clusterMap.get(clusterKeys[j]).count;
+        }
+        int [][] pairCount = getPairCounts(trees, clusterMap);
+        printClusters(out, clusterStrings, clusterCounts, pairCount, treeCount);
+        if (matrixInput.get() != null && !matrixInput.get().getName().equals("[[none]]")) {
+        	writeMatrix(pairCount, treeCount);
+        }
+        if (chainCounts != null) {
+        	printChainAgreement(out, trees, files, chainCounts.get(1));
         }
 
+        if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+        	out.close();
+        }
+	}
+
+	
+	/**
+	 * print cluster sets, individual clusters and pairs of taxa with their support
+	 * @param clusterStrings cluster sets, sorted by decreasing count
+	 * @param clusterCounts number of trees or samples in which the cluster sets occur
+	 * @param pairCount entry [d][e] with d < e is the number of trees or samples in which taxa d and e are in the same cluster
+	 */
+	private void printClusters(PrintStream out, String [] clusterStrings, int [] clusterCounts, int [][] pairCount, double treeCount) throws IOException {
+        DecimalFormat f = new DecimalFormat("#.##");
+        // determine size of 95% credible set
+        int threshold = (int)(1 + treeCount * 95 / 100);
+        int coverageSetCount = 0;
+        int k = 0;
+        while (coverageSetCount < threshold && k < clusterCounts.length) {
+        	coverageSetCount += clusterCounts[k++];
+        }
 
-        i = 0;
-        cum = 0;
+
+        int i = 0;
+        double cum = 0;
         out.println("\nsupport\t#taxa\tclusters");
-        for (String s : clusterKeys) {
+        for (String s : clusterStrings) {
         	if (i <= k && i < max || printTailInput.get()) {
-        		double percent = 100 * clusterMap.get(s)/treeCount;
+        		double percent = 100.0 * clusterCounts[i]/treeCount;
         		cum += percent;
         		out.println(f.format(percent) + "%\t" + taxonCount2(s) + "\t" + s.replaceAll(SPECIES_SEPARATOR, " + "));
             	if (i==k && printTailInput.get()) {
@@ -202,8 +267,9 @@ public class ClusterTreeSetAnalyser extends beast.base.inference.Runnable {
         
         // collect info on individual clusters
         Map<String,Integer> singleClusterCount = new HashMap<>();
-        for (String s : clusterKeys) {
-    		int percent = clusterMap.get(s);
+        for (int j = 0; j < clusterStrings.length; j++) {
+        	String s = clusterStrings[j];
+    		int percent = clusterCounts[j];
     		for (String singleCluster: s.split(",")) {
     			if (!singleClusterCount.containsKey(singleCluster)) {
     				singleClusterCount.put(singleCluster, percent);
@@ -227,55 +293,1017 @@ public class ClusterTreeSetAnalyser extends beast.base.inference.Runnable {
         
         out.println("\nsupport\tcount\tcluster");
         for (String s : singleClusterKeys) {
-    		double percent = 100*singleClusterCount.get(s)/treeCount;
+    		double percent = 100.0 * singleClusterCount.get(s)/treeCount;
     		out.println(f.format(percent) + "%\t" + singleClusterCount.get(s) + "\t" + s.replaceAll(SPECIES_SEPARATOR, " + "));
         }
 
         // collect info on pairs of taxa
-        Map<String,Integer> pairClusterCount = new HashMap<>();
-        for (String s : clusterKeys) {
-    		int percent = clusterMap.get(s);
-    		for (String singleCluster: s.split(",")) {
-    			String [] taxa = singleCluster.split(SPECIES_SEPARATOR);
-    			for (int d = 0; d < taxa.length; d++) {
-    				for (int e = d+1; e < taxa.length; e++) {
-    					String pair = taxa[d] + SPECIES_SEPARATOR + taxa[e];
-    	    			if (!pairClusterCount.containsKey(pair)) {
-    	    				pairClusterCount.put(pair, percent);
-    	    			} else {
-    	    				pairClusterCount.put(pair, percent + pairClusterCount.get(pair));
-    	    			}
-    				}
-    			}
-    			
-    		}
+        int n = taxonNames.length;
+
+        // sort pairs by count, then by taxon numbers. Pairs are numbered in order of taxon numbers,
+        // and sorted as longs with the count in the upper and the number of the pair in the lower 32 bits
+        int pairCountSize = 0;
+        for (int d = 0; d < n; d++) {
+        	for (int e = d + 1; e < n; e++) {
+        		if (pairCount[d][e] > 0) {
+        			pairCountSize++;
+        		}
+        	}
         }
-        
-        String [] pairClusterKeys = pairClusterCount.keySet().toArray(new String[] {});
-        Arrays.sort(pairClusterKeys, (a,b) -> {
-        	final int i1 = pairClusterCount.get(a);
-        	final int i2 = pairClusterCount.get(b);
-        	if (i1 > i2) {
-        		return -1;
-        	} else if (i1 == i2) {
-        		return 0;
+        long [] pairs = new long[pairCountSize];
+        int [] pairD = new int[pairCountSize], pairE = new int[pairCountSize];
+        pairCountSize = 0;
+        for (int d = 0; d < n; d++) {
+        	for (int e = d + 1; e < n; e++) {
+        		if (pairCount[d][e] > 0) {
+        			pairD[pairCountSize] = d;
+        			pairE[pairCountSize] = e;
+        			pairs[pairCountSize] = ((long)(Integer.MAX_VALUE - pairCount[d][e]) << 32) | pairCountSize;
+        			pairCountSize++;
+        		}
         	}
-        	return 1;
-        });
+        }
+        Arrays.sort(pairs);
         
         out.println("\nsupport\tcount\tpair");
-        for (String s : pairClusterKeys) {
-    		double percent = 100 * pairClusterCount.get(s)/treeCount;
-    		out.println(f.format(percent) + "%\t" + pairClusterCount.get(s) + "\t" + s.replaceAll(SPECIES_SEPARATOR, " + "));
+        for (long pair : pairs) {
+        	int d = pairD[(int) pair];
+        	int e = pairE[(int) pair];
+    		double percent = 100.0 * pairCount[d][e]/treeCount;
+    		out.println(f.format(percent) + "%\t" + pairCount[d][e] + "\t" + taxonNames[d] + " + " + taxonNames[e]);
+        }
+	}
+
+	/** print the distribution of the number of clusters in cluster sets **/
+	private void printClusterCounts(PrintStream out, String [] clusterStrings, int [] clusterCounts, double treeCount) {
+        DecimalFormat f = new DecimalFormat("#.##");
+		int [] distribution = new int[taxonNames.length + 1];
+		for (int j = 0; j < clusterStrings.length; j++) {
+			distribution[taxonCount2(clusterStrings[j])] += clusterCounts[j];
+		}
+        out.println("\nsupport\tcount\t#clusters");
+        for (int c = 1; c < distribution.length; c++) {
+        	if (distribution[c] > 0) {
+        		out.println(f.format(100.0 * distribution[c]/treeCount) + "%\t" + distribution[c] + "\t" + c);
+        	}
+        }
+	}
+
+	/** @return distinct thresholds of the epsilons input in increasing order **/
+	private double [] getEpsilons() {
+		String [] strs = epsilonsInput.get().trim().split("[,\\s]+");
+		double [] epsilons = new double[strs.length];
+		for (int i = 0; i < strs.length; i++) {
+			try {
+				epsilons[i] = Double.parseDouble(strs[i]);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Could not parse threshold '" + strs[i] + "' in epsilons");
+			}
+		}
+		Arrays.sort(epsilons);
+		int k = 0;
+		for (int i = 0; i < epsilons.length; i++) {
+			if (k == 0 || epsilons[i] != epsilons[k - 1]) {
+				epsilons[k++] = epsilons[i];
+			}
+		}
+		return Arrays.copyOf(epsilons, k);
+	}
+
+	/**
+	 * Summarise cluster sets at each threshold in epsilons, which are in increasing order.
+	 * Trees are traversed once for all thresholds, see KeyBuilder.sweep.
+	 */
+	private void sweepEpsilons(List<File> files, TreeSets trees, double [] epsilons) throws Exception {
+		if (originalInput.get() != null && !originalInput.get().getName().equals("[[none]]")) {
+			Log.warning("Ignoring original tree: topologies are not reported when epsilons is specified");
+		}
+		if (matrixInput.get() != null && !matrixInput.get().getName().equals("[[none]]")) {
+			Log.warning("Ignoring matrix: it is not written when epsilons is specified");
+		}
+		List<Map<Key,Count>> clusterMaps = new ArrayList<>();
+		for (int j = 0; j < epsilons.length; j++) {
+			clusterMaps.add(new LinkedHashMap<>());
+		}
+		List<ChainCounts> chainCounts = countChains(trees, clusterMaps, epsilons);
+		double treeCount = trees.getTreeCount();
+
+		PrintStream out = System.out;
+        if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+			Log.warning("Writing to file " + outputInput.get().getPath());
+        	out = new PrintStream(outputInput.get());
+        }
+        out.println("Cluster sets of " + (int) treeCount + " trees at " + epsilons.length + " thresholds");
+        for (int j = 0; j < epsilons.length; j++) {
+        	// cluster strings and pair counts are obtained from the trees at this threshold
+        	epsilon = epsilons[j];
+        	Map<Key,Count> clusterMap = clusterMaps.get(j);
+        	Key [] clusterKeys = clusterMap.keySet().toArray(new Key[] {});
+        	Arrays.sort(clusterKeys, (a,b) -> Integer.compare(clusterMap.get(b).count, clusterMap.get(a).count));
+        	String [] clusterStrings = new String[clusterKeys.length];
+        	int [] clusterCounts = new int[clusterKeys.length];
+        	for (int k = 0; k < clusterKeys.length; k++) {
+        		clusterStrings[k] = mapTree2Cluster(getShortTopology(getRoot(trees, clusterMap.get(clusterKeys[k]).firstTree)));
+        		clusterCounts[k] = clusterMap.get(clusterKeys[k]).count;
+        	}
+        	out.println("\n=== epsilon = " + epsilon + " ===");
+        	printClusterCounts(out, clusterStrings, clusterCounts, treeCount);
+        	printClusters(out, clusterStrings, clusterCounts, getPairCounts(trees, clusterMap), treeCount);
+        	if (chainCounts != null) {
+        		printChainAgreement(out, trees, files, chainCounts.get(j));
+        	}
         }
-       
-        
         if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
         	out.close();
         }
 	}
 
-	
+	/** summarise cluster sets from file written by ClusterMembershipLogger instead of from trees **/
+	private void summariseMemberships() throws IOException {
+		if (originalInput.get() != null && !originalInput.get().getName().equals("[[none]]")) {
+			Log.warning("Ignoring original tree: topologies are not available from cluster memberships");
+		}
+
+		// label vectors are stored as strings, one character per taxon
+		List<String> samples = new ArrayList<>();
+		try (ClusterMembershipReader reader = new ClusterMembershipReader(membershipInput.get())) {
+			taxonNames = reader.getTaxa();
+			if (taxonNames.length > Character.MAX_VALUE) {
+				throw new IllegalArgumentException("Too many taxa in " + membershipInput.get().getPath());
+			}
+			char [] labels = new char[taxonNames.length];
+			while (reader.next()) {
+				for (int i = 0; i < labels.length; i++) {
+					labels[i] = (char) reader.getLabels()[i];
+				}
+				samples.add(new String(labels));
+			}
+		}
+		int burnin = samples.size() * burnInPercentageInput.get() / 100;
+		if (samples.size() - burnin == 0) {
+			throw new IllegalArgumentException("No samples found in " + membershipInput.get().getPath());
+		}
+		double sampleCount = samples.size() - burnin;
+
+		Map<String,Count> clusterMap = new LinkedHashMap<>();
+		for (int i = burnin; i < samples.size(); i++) {
+			Count count = clusterMap.get(samples.get(i));
+			if (count == null) {
+				clusterMap.put(samples.get(i), new Count(i));
+			} else {
+				count.count++;
+			}
+		}
+		String [] clusterKeys = clusterMap.keySet().toArray(new String[] {});
+		Arrays.sort(clusterKeys, (a,b) -> Integer.compare(clusterMap.get(b).count, clusterMap.get(a).count));
+
+		int n = taxonNames.length;
+		String [] clusterStrings = new String[clusterKeys.length];
+		int [] clusterCounts = new int[clusterKeys.length];
+		int [][] pairCount = new int[n][n];
+		// taxa sorted by cluster, cluster c starts at clusterStart[c] in taxa
+		int [] taxa = new int[n];
+		int [] clusterStart = new int[n + 1];
+		for (int j = 0; j < clusterKeys.length; j++) {
+			String labels = clusterKeys[j];
+			int count = clusterMap.get(labels).count;
+			clusterCounts[j] = count;
+
+			Arrays.fill(clusterStart, 0);
+			for (int d = 0; d < n; d++) {
+				clusterStart[labels.charAt(d) + 1]++;
+			}
+			int clusterCount = 0;
+			for (int c = 0; c < n; c++) {
+				if (clusterStart[c + 1] > 0) {
+					clusterCount = c + 1;
+				}
+				clusterStart[c + 1] += clusterStart[c];
+			}
+			int [] next = Arrays.copyOf(clusterStart, n);
+			for (int d = 0; d < n; d++) {
+				taxa[next[labels.charAt(d)]++] = d;
+			}
+
+			String [] clusters = new String[clusterCount];
+			for (int c = 0; c < clusterCount; c++) {
+				StringBuilder b = new StringBuilder();
+				for (int x = clusterStart[c]; x < clusterStart[c + 1]; x++) {
+					if (x > clusterStart[c]) {
+						b.append(SPECIES_SEPARATOR);
+					}
+					b.append(taxonNames[taxa[x]]);
+					// taxa within a cluster are in increasing order, so d < e
+					int [] row = pairCount[taxa[x]];
+					for (int y = x + 1; y < clusterStart[c + 1]; y++) {
+						row[taxa[y]] += count;
+					}
+				}
+				clusters[c] = b.toString();
+			}
+			Arrays.sort(clusters);
+			clusterStrings[j] = String.join(",", clusters);
+		}
+
+		PrintStream out = System.out;
+        if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+			Log.warning("Writing to file " + outputInput.get().getPath());
+        	out = new PrintStream(outputInput.get());
+        }
+        out.println("Cluster memberships of " + (int) sampleCount + " samples");
+		printClusters(out, clusterStrings, clusterCounts, pairCount, sampleCount);
+        if (matrixInput.get() != null && !matrixInput.get().getName().equals("[[none]]")) {
+        	writeMatrix(pairCount, sampleCount);
+        }
+        if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+        	out.close();
+        }
+	}
+
+	/** @return tree files of the chains input, or the trees input if chains is not specified **/
+	private List<File> getTreeFiles() {
+		List<File> files = new ArrayList<>();
+		if (chainsInput.get() != null && chainsInput.get().trim().length() > 0) {
+			for (String name : chainsInput.get().trim().split("\\s*,\\s*")) {
+				files.add(new File(name));
+			}
+		} else {
+			files.add(treesInput.get());
+		}
+		return files;
+	}
+
+	/**
+	 * Count keys of the trees of all chains in maps, as countTrees(trees, maps, epsilons) does.
+	 * Multiple chains are counted concurrently when threads > 1, and merged.
+	 * @return merged counts of each of the maps, which keep counts per chain, or null if there is only one chain
+	 */
+	private List<ChainCounts> countChains(TreeSets trees, List<Map<Key,Count>> maps, double [] epsilons) throws Exception {
+		int chains = trees.getChainCount();
+		if (chains == 1) {
+			countTrees(trees, maps, epsilons);
+			return null;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadsInput.get(), chains)));
+		List<Future<List<Map<Key,Count>>>> futures = new ArrayList<>();
+		try {
+			for (int c = 0; c < chains; c++) {
+				final int from = trees.getFirstTree(c);
+				final int end = trees.getFirstTree(c + 1);
+				futures.add(executor.submit(() -> {
+					List<Map<Key,Count>> chainMaps = new ArrayList<>();
+					for (int j = 0; j < maps.size(); j++) {
+						chainMaps.add(new LinkedHashMap<>());
+					}
+					countTrees(trees, from, end, chainMaps, epsilons);
+					return chainMaps;
+				}));
+			}
+			List<ChainCounts> chainCounts = new ArrayList<>();
+			for (int j = 0; j < maps.size(); j++) {
+				chainCounts.add(new ChainCounts(chains));
+			}
+			// chains are merged in order, so keys are in order of first occurrence in the concatenation of chains
+			for (int c = 0; c < chains; c++) {
+				List<Map<Key,Count>> chainMaps = futures.get(c).get();
+				for (int j = 0; j < maps.size(); j++) {
+					for (Map.Entry<Key,Count> entry : chainMaps.get(j).entrySet()) {
+						chainCounts.get(j).add(c, entry.getKey(), entry.getValue().count, entry.getValue().firstTree);
+					}
+				}
+			}
+			for (int j = 0; j < maps.size(); j++) {
+				chainCounts.get(j).addTo(maps.get(j));
+			}
+			return chainCounts;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Print agreement between chains: the average standard deviation of frequencies (ASDSF) of cluster sets and of
+	 * individual clusters with frequency at least MIN_FREQUENCY in some chain, and the largest difference between
+	 * chains in the proportion of trees in which a pair of taxa is in the same cluster.
+	 * @param clusterCounts cluster set counts of all chains, with firstTree numbered in trees
+	 */
+	private void printChainAgreement(PrintStream out, TreeSets trees, List<File> files, ChainCounts clusterCounts) {
+		int chainCount = files.size();
+		int n = taxonNames.length;
+		double [] treeCount = new double[chainCount];
+		for (int c = 0; c < chainCount; c++) {
+			for (int i = 0; i < clusterCounts.size(); i++) {
+				treeCount[c] += clusterCounts.chainCount[c][i];
+			}
+		}
+
+		// individual clusters and pairs of taxa in the same cluster in each chain
+		ChainCounts singleClusterCounts = new ChainCounts(chainCount);
+		int [][][] pairCount = new int[chainCount][n][n];
+		KeyBuilder builder = new KeyBuilder(trees.getTree(0), taxonIndex);
+		for (int i = 0; i < clusterCounts.size(); i++) {
+			builder.topologyKey(getRoot(trees, clusterCounts.firstTree[i]));
+			for (int j = 0; j < builder.clusterCount; j++) {
+				Key key = builder.singleClusterKey(j);
+				int start = builder.clusterStart[j];
+				int end = start + builder.clusterSize[j];
+				for (int c = 0; c < chainCount; c++) {
+					int count = clusterCounts.chainCount[c][i];
+					if (count > 0) {
+						singleClusterCounts.add(c, key, count, clusterCounts.firstTree[i]);
+						// taxa in a cluster are sorted, so d < e
+						for (int x = start; x < end; x++) {
+							int [] row = pairCount[c][builder.taxa[x]];
+							for (int y = x + 1; y < end; y++) {
+								row[builder.taxa[y]] += count;
+							}
+						}
+					}
+				}
+			}
+		}
+
+		double maxDifference = 0;
+		int maxD = -1, maxE = -1;
+		for (int d = 0; d < n; d++) {
+			for (int e = d + 1; e < n; e++) {
+				double min = 1, max = 0;
+				for (int c = 0; c < chainCount; c++) {
+					double p = pairCount[c][d][e] / treeCount[c];
+					min = Math.min(min, p);
+					max = Math.max(max, p);
+				}
+				if (max - min > maxDifference) {
+					maxDifference = max - min;
+					maxD = d;
+					maxE = e;
+				}
+			}
+		}
+
+        DecimalFormat f = new DecimalFormat("#.####");
+        out.println("\nAgreement between " + chainCount + " chains");
+        out.println("chain\ttrees\tfile");
+        for (int c = 0; c < chainCount; c++) {
+        	out.println((c + 1) + "\t" + (int) treeCount[c] + "\t" + files.get(c).getPath());
+        }
+        printASDSF(out, "cluster sets", clusterCounts, treeCount);
+        printASDSF(out, "clusters", singleClusterCounts, treeCount);
+        out.println("max difference in pair co-assignment\t" + f.format(maxDifference) +
+        		(maxD >= 0 ? "\t" + taxonNames[maxD] + " + " + taxonNames[maxE] : ""));
+	}
+
+	/** print average standard deviation between chains of frequencies of keys with frequency at least MIN_FREQUENCY in some chain **/
+	private void printASDSF(PrintStream out, String label, ChainCounts counts, double [] treeCount) {
+		int chainCount = treeCount.length;
+		double sum = 0;
+		int k = 0;
+		for (int i = 0; i < counts.size(); i++) {
+			double mean = 0, max = 0;
+			for (int c = 0; c < chainCount; c++) {
+				double p = counts.chainCount[c][i] / treeCount[c];
+				mean += p;
+				max = Math.max(max, p);
+			}
+			if (max >= MIN_FREQUENCY) {
+				mean /= chainCount;
+				double var = 0;
+				for (int c = 0; c < chainCount; c++) {
+					double p = counts.chainCount[c][i] / treeCount[c];
+					var += (p - mean) * (p - mean);
+				}
+				sum += Math.sqrt(var / (chainCount - 1));
+				k++;
+			}
+		}
+        DecimalFormat f = new DecimalFormat("#.####");
+		out.println("ASDSF of " + label + "\t" + f.format(k == 0 ? 0 : sum / k) + "\tover " + k + " " + label + " with frequency >= " + MIN_FREQUENCY + " in some chain");
+	}
+
+	/**
+	 * Count keys of all trees, using threadsInput threads.
+	 * If epsilons is null, topologies are counted in maps.get(0) and clusters in maps.get(1),
+	 * otherwise clusters at threshold epsilons[j] are counted in maps.get(j).
+	 */
+	private void countTrees(TreeSets trees, List<Map<Key,Count>> maps, double [] epsilons) throws Exception {
+        if (threadsInput.get() > 1) {
+        	countTrees(trees, threadsInput.get(), maps, epsilons);
+        } else {
+        	countTrees(trees, 0, trees.getTreeCount(), maps, epsilons);
+        }
+	}
+
+	/**
+	 * add keys of trees from up to end to the counts in maps, as described for countTrees(trees, maps, epsilons).
+	 * Every tree is parsed when it is counted, and not kept afterwards.
+	 */
+	private void countTrees(TreeSets trees, int from, int end, List<Map<Key,Count>> maps, double [] epsilons) {
+		KeyBuilder builder = null;
+		for (int i = from; i < end; i++) {
+	        Tree tree = trees.getTree(i);
+	        if (builder == null) {
+	        	builder = new KeyBuilder(tree, taxonIndex);
+	        }
+	        Node root = tree.getRoot();
+	        sortByTaxon(root);
+	        if (epsilons == null) {
+	        	count(builder.topologyKey(root), i, maps.get(0));
+	        	count(builder.clusterKey(), i, maps.get(1));
+	        } else {
+	        	boolean isValid = builder.sweep(root, epsilons);
+	        	for (int j = 0; j < epsilons.length; j++) {
+	        		count(isValid ? builder.clusterKey(j) : null, i, maps.get(j));
+	        	}
+	        }
+		}
+	}
+
+	private void count(Key key, int treeNr, Map<Key,Count> map) {
+        Count count = map.get(key);
+        if (count == null) {
+        	map.put(key, new Count(treeNr));
+        } else {
+        	count.count++;
+        }
+	}
+
+	/**
+	 * Multi-threaded version of counting topologies and clusters: batches of trees are
+	 * parsed and processed by a pool of threads, so only the trees being counted are in memory.
+	 * Partial counts are merged in the order the trees appear in the tree set, so keys
+	 * are added to maps in the same order as when counting sequentially,
+	 * which keeps iteration order, and thus the output, the same as for a single thread.
+	 */
+	private void countTrees(TreeSets trees, int threads, List<Map<Key,Count>> maps, double [] epsilons) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<List<Map<Key,Count>>>> batches = new ArrayList<>();
+		try {
+			for (int i = 0; i < trees.getTreeCount(); i += BATCH_SIZE) {
+				final int from = i;
+				final int end = Math.min(i + BATCH_SIZE, trees.getTreeCount());
+				batches.add(executor.submit(() -> {
+					List<Map<Key,Count>> batchMaps = new ArrayList<>();
+					for (int j = 0; j < maps.size(); j++) {
+						batchMaps.add(new LinkedHashMap<>());
+					}
+					countTrees(trees, from, end, batchMaps, epsilons);
+					return batchMaps;
+				}));
+			}
+			for (Future<List<Map<Key,Count>>> batch : batches) {
+				List<Map<Key,Count>> counts = batch.get();
+				for (int j = 0; j < maps.size(); j++) {
+					merge(counts.get(j), maps.get(j));
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void merge(Map<Key,Count> counts, Map<Key,Count> map) {
+		for (Map.Entry<Key,Count> entry : counts.entrySet()) {
+			Count count = map.get(entry.getKey());
+			if (count == null) {
+				map.put(entry.getKey(), entry.getValue());
+			} else {
+				count.count += entry.getValue().count;
+			}
+		}
+	}
+
+	/** @return map from taxon names to numbers, which are in alphabetical order of taxon names **/
+	private Map<String,Integer> getTaxonIndex(Tree tree) {
+		taxonNames = new String[tree.getLeafNodeCount()];
+		for (int i = 0; i < taxonNames.length; i++) {
+			taxonNames[i] = tree.getNode(i).getID();
+		}
+		Arrays.sort(taxonNames);
+		Map<String,Integer> taxonIndex = new HashMap<>();
+		for (int i = 0; i < taxonNames.length; i++) {
+			taxonIndex.put(taxonNames[i], i);
+		}
+		return taxonIndex;
+	}
+
+	/** @return root of tree number treeNr, parsed again, with children in the order they had when the tree was counted **/
+	private Node getRoot(TreeSets trees, int treeNr) {
+		Node root = trees.getTree(treeNr).getRoot();
+		sortByTaxon(root);
+		return root;
+	}
+
+	/**
+	 * Order children by their lowest taxon number, so that the order, and thus keys and printed topologies,
+	 * do not depend on leaf numbers, which may differ between trees
+	 * @return lowest taxon number below node, -1 if there are taxa not in the tree set
+	 */
+	private int sortByTaxon(Node node) {
+		if (node.isLeaf()) {
+			Integer taxon = taxonIndex.get(node.getID());
+			return taxon == null ? -1 : taxon;
+		}
+		int left = sortByTaxon(node.getLeft());
+		int right = sortByTaxon(node.getRight());
+		if (right < left) {
+			Node tmp = node.getLeft();
+			node.setLeft(node.getRight());
+			node.setRight(tmp);
+			return right;
+		}
+		return left;
+	}
+
+	/**
+	 * @return co-clustering counts: entry [d][e] with d < e is the number of trees in which
+	 * taxa d and e are in the same cluster. Each distinct cluster set adds its count once per pair.
+	 */
+	private int [][] getPairCounts(TreeSets trees, Map<Key,Count> clusterMap) {
+		int n = taxonNames.length;
+		int [][] pairCount = new int[n][n];
+		KeyBuilder builder = new KeyBuilder(trees.getTree(0), taxonIndex);
+		for (Count count : clusterMap.values()) {
+			builder.topologyKey(getRoot(trees, count.firstTree));
+			for (int i = 0; i < builder.clusterCount; i++) {
+				// taxa in a cluster are sorted, so d < e
+				int start = builder.clusterStart[i];
+				int end = start + builder.clusterSize[i];
+				for (int j = start; j < end; j++) {
+					int [] row = pairCount[builder.taxa[j]];
+					for (int k = j + 1; k < end; k++) {
+						row[builder.taxa[k]] += count.count;
+					}
+				}
+			}
+		}
+		return pairCount;
+	}
+
+	/** write proportion of trees in which pairs of taxa are in the same cluster as symmetric matrix **/
+	private void writeMatrix(int [][] pairCount, double treeCount) throws IOException {
+		int n = taxonNames.length;
+		Log.warning("Writing matrix to file " + matrixInput.get().getPath());
+		if (matrixFormatInput.get() == MatrixFormat.binary) {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(matrixInput.get())))) {
+				out.writeInt(n);
+				for (String taxon : taxonNames) {
+					out.writeUTF(taxon);
+				}
+				for (int d = 0; d < n; d++) {
+					for (int e = 0; e < n; e++) {
+						out.writeDouble(pairSupport(pairCount, d, e, treeCount));
+					}
+				}
+			}
+		} else {
+			try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(matrixInput.get())))) {
+				StringBuilder b = new StringBuilder();
+				for (String taxon : taxonNames) {
+					b.append('\t').append(taxon);
+				}
+				out.println(b);
+				for (int d = 0; d < n; d++) {
+					b.setLength(0);
+					b.append(taxonNames[d]);
+					for (int e = 0; e < n; e++) {
+						b.append('\t').append(pairSupport(pairCount, d, e, treeCount));
+					}
+					out.println(b);
+				}
+			}
+		}
+	}
+
+	private double pairSupport(int [][] pairCount, int d, int e, double treeCount) {
+		if (d == e) {
+			return 1.0;
+		}
+		return (d < e ? pairCount[d][e] : pairCount[e][d]) / treeCount;
+	}
+
+	/**
+	 * Trees after burn-in of the tree files of the chains, numbered consecutively over the files.
+	 * Trees are parsed from the files when needed, so only a tree number is kept for each topology and cluster set.
+	 */
+	private class TreeSets implements Closeable {
+		private final IndexedTreeSet [] sets;
+		// number of trees in the burn-in of each file
+		private final int [] burnin;
+		// trees of file c are numbered from offset[c] up to offset[c + 1]
+		private final int [] offset;
+
+		/** index files, concurrently when threads > 1, and skip burn-in **/
+		TreeSets(List<File> files) throws Exception {
+			sets = new IndexedTreeSet[files.size()];
+			if (files.size() == 1) {
+				sets[0] = new IndexedTreeSet(files.get(0));
+			} else {
+				ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadsInput.get(), files.size())));
+				List<Future<IndexedTreeSet>> futures = new ArrayList<>();
+				try {
+					for (File file : files) {
+						futures.add(executor.submit(() -> new IndexedTreeSet(file)));
+					}
+					for (int c = 0; c < sets.length; c++) {
+						sets[c] = futures.get(c).get();
+					}
+				} finally {
+					executor.shutdown();
+				}
+			}
+			burnin = new int[sets.length];
+			offset = new int[sets.length + 1];
+			for (int c = 0; c < sets.length; c++) {
+				burnin[c] = sets[c].getTreeCount() * burnInPercentageInput.get() / 100;
+				if (sets[c].getTreeCount() == burnin[c]) {
+					throw new IllegalArgumentException("No trees found in " + files.get(c).getPath());
+				}
+				offset[c + 1] = offset[c] + sets[c].getTreeCount() - burnin[c];
+			}
+		}
+
+		int getTreeCount() {
+			return offset[sets.length];
+		}
+
+		/** @return tree number treeNr, parsed anew every call. May be called by several threads at the same time **/
+		Tree getTree(int treeNr) {
+			int c = sets.length - 1;
+			while (offset[c] > treeNr) {
+				c--;
+			}
+			return sets[c].getTree(burnin[c] + treeNr - offset[c]);
+		}
+
+		int getChainCount() {
+			return sets.length;
+		}
+
+		/** @return number of the first tree of file c, or the number of trees if c is the number of files **/
+		int getFirstTree(int c) {
+			return offset[c];
+		}
+
+		@Override
+		public void close() {
+			for (IndexedTreeSet set : sets) {
+				if (set != null) {
+					set.close();
+				}
+			}
+		}
+	}
+
+	/** 128 bit hash of the canonical encoding of a topology or set of clusters **/
+	private static class Key {
+		final long hash1, hash2;
+
+		Key(long hash1, long hash2) {
+			this.hash1 = hash1;
+			this.hash2 = hash2;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash1 ^ (hash1 >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return hash1 == other.hash1 && hash2 == other.hash2;
+		}
+	}
+
+	/**
+	 * Open addressing hash table on primitive arrays that numbers keys consecutively in order of insertion.
+	 * The null key, used for trees with taxa not in the tree set, is numbered like any other.
+	 */
+	private static class KeyIndex {
+		private long [] hash1 = new long[16], hash2 = new long[16];
+		// number + 1 of the key in each slot, 0 for empty slots
+		private int [] table = new int[32];
+		private int size, nullKey = -1;
+
+		/** @return number of key, which is added if not present yet **/
+		int add(Key key) {
+			if (key == null) {
+				if (nullKey < 0) {
+					nullKey = append(0, 0);
+				}
+				return nullKey;
+			}
+			int mask = table.length - 1;
+			int slot = key.hashCode() & mask;
+			while (table[slot] != 0) {
+				int i = table[slot] - 1;
+				if (hash1[i] == key.hash1 && hash2[i] == key.hash2) {
+					return i;
+				}
+				slot = (slot + 1) & mask;
+			}
+			int i = append(key.hash1, key.hash2);
+			table[slot] = i + 1;
+			if (size * 2 > table.length) {
+				rehash();
+			}
+			return i;
+		}
+
+		Key getKey(int i) {
+			return i == nullKey ? null : new Key(hash1[i], hash2[i]);
+		}
+
+		int size() {
+			return size;
+		}
+
+		private int append(long h1, long h2) {
+			if (size == hash1.length) {
+				hash1 = Arrays.copyOf(hash1, size * 2);
+				hash2 = Arrays.copyOf(hash2, size * 2);
+			}
+			hash1[size] = h1;
+			hash2[size] = h2;
+			return size++;
+		}
+
+		private void rehash() {
+			table = new int[table.length * 2];
+			int mask = table.length - 1;
+			for (int i = 0; i < size; i++) {
+				if (i != nullKey) {
+					int slot = (int) (hash1[i] ^ (hash1[i] >>> 32)) & mask;
+					while (table[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					table[slot] = i + 1;
+				}
+			}
+		}
+	}
+
+	/** counts of keys over several chains, in primitive arrays indexed by the number of the key in a KeyIndex **/
+	private static class ChainCounts {
+		final KeyIndex index = new KeyIndex();
+		int [] count = new int[16], firstTree = new int[16];
+		// chainCount[c][i] is the number of trees in chain c with key number i
+		final int [][] chainCount;
+
+		ChainCounts(int chains) {
+			chainCount = new int[chains][16];
+		}
+
+		void add(int chain, Key key, int n, int treeNr) {
+			int size = index.size();
+			int i = index.add(key);
+			if (i == size) {
+				if (size == count.length) {
+					count = Arrays.copyOf(count, size * 2);
+					firstTree = Arrays.copyOf(firstTree, size * 2);
+					for (int c = 0; c < chainCount.length; c++) {
+						chainCount[c] = Arrays.copyOf(chainCount[c], size * 2);
+					}
+				}
+				firstTree[i] = treeNr;
+			}
+			count[i] += n;
+			chainCount[chain][i] += n;
+		}
+
+		int size() {
+			return index.size();
+		}
+
+		/** add counts to map, in order of key numbers **/
+		void addTo(Map<Key,Count> map) {
+			for (int i = 0; i < size(); i++) {
+				Count c = new Count(firstTree[i]);
+				c.count = count[i];
+				map.put(index.getKey(i), c);
+			}
+		}
+	}
+
+	/** number of trees with a particular key, and the number of the first of these trees, which is parsed again to print the key **/
+	private static class Count {
+		int count = 1;
+		final int firstTree;
+
+		Count(int firstTree) {
+			this.firstTree = firstTree;
+		}
+	}
+
+	/**
+	 * Calculates keys of topologies and cluster sets of trees with the same taxa without creating strings.
+	 * Topologies are encoded like getShortTopology, with taxa replaced by their number in alphabetical order:
+	 * an internal node above epsilon is encoded as OPEN, left, right, CLOSE, and a leaf or clade below epsilon by
+	 * its number of taxa followed by the sorted taxon numbers. A cluster set is encoded by its clusters ordered by
+	 * their lowest taxon number. Encodings are not stored, but hashed into a Key as they are produced.
+	 * A KeyBuilder is not thread safe.
+	 */
+	private class KeyBuilder {
+		final static int OPEN = -1, CLOSE = -2;
+
+		// taxon numbers by taxon name; leaves are looked up by name, since leaf numbers may differ between trees
+		private Map<String,Integer> taxonIndex;
+		// taxa of clusters of last topology, cluster i starts at clusterStart[i] in taxa
+		private int [] taxa, clusterStart, clusterSize, clusterOfFirstTaxon;
+		private int taxonCount, clusterCount;
+		private long hash1, hash2;
+		// nodes of last tree passed to sweep in preorder: node i is clustered with all taxa below it from threshold
+		// collapseAt[i] onwards, has taxa leafTaxa[leafStart[i]] up to leafTaxa[leafEnd[i]], and its clade ends before node cladeEnd[i]
+		private int [] collapseAt, leafStart, leafEnd, cladeEnd, leafTaxa;
+		private int nodeCount;
+
+		KeyBuilder(Tree tree, Map<String,Integer> taxonIndex) {
+			this.taxonIndex = taxonIndex;
+			int n = taxonIndex.size();
+			taxa = new int[n];
+			clusterStart = new int[n];
+			clusterSize = new int[n];
+			clusterOfFirstTaxon = new int[n];
+			int nodes = tree.getNodeCount();
+			collapseAt = new int[nodes];
+			leafStart = new int[nodes];
+			leafEnd = new int[nodes];
+			cladeEnd = new int[nodes];
+			leafTaxa = new int[n];
+		}
+
+		/** @return key of topology of clade below node, or null if it contains taxa not in the tree set **/
+		Key topologyKey(Node root) {
+			taxonCount = 0;
+			clusterCount = 0;
+			startHash();
+			if (!addTopology(root)) {
+				return null;
+			}
+			return new Key(finalHash(hash1), finalHash(hash2));
+		}
+
+		/** @return key of cluster i of the last topology passed to topologyKey **/
+		Key singleClusterKey(int i) {
+			startHash();
+			add(clusterSize[i]);
+			for (int j = clusterStart[i]; j < clusterStart[i] + clusterSize[i]; j++) {
+				add(taxa[j]);
+			}
+			return new Key(finalHash(hash1), finalHash(hash2));
+		}
+
+		/** @return key of the set of clusters of the last topology passed to topologyKey **/
+		Key clusterKey() {
+			startHash();
+			Arrays.fill(clusterOfFirstTaxon, -1);
+			for (int i = 0; i < clusterCount; i++) {
+				clusterOfFirstTaxon[taxa[clusterStart[i]]] = i;
+			}
+			for (int i = 0; i < clusterOfFirstTaxon.length; i++) {
+				int cluster = clusterOfFirstTaxon[i];
+				if (cluster >= 0) {
+					add(clusterSize[cluster]);
+					for (int j = clusterStart[cluster]; j < clusterStart[cluster] + clusterSize[cluster]; j++) {
+						add(taxa[j]);
+					}
+				}
+			}
+			return new Key(finalHash(hash1), finalHash(hash2));
+		}
+
+		/**
+		 * Prepare clusterKey(j) for the tree below root, for thresholds epsilons in increasing order,
+		 * so that cluster sets at all thresholds are obtained from a single traversal.
+		 * @return false if the tree contains taxa not in the tree set
+		 */
+		boolean sweep(Node root, double [] epsilons) {
+			nodeCount = 0;
+			taxonCount = 0;
+			return addPreorder(root, epsilons.length, epsilons);
+		}
+
+		/** @return key of the set of clusters at threshold epsilons[j] of the last tree passed to sweep **/
+		Key clusterKey(int j) {
+			taxonCount = 0;
+			clusterCount = 0;
+			int i = 0;
+			while (i < nodeCount) {
+				if (collapseAt[i] <= j) {
+					int start = taxonCount;
+					for (int k = leafStart[i]; k < leafEnd[i]; k++) {
+						taxa[taxonCount++] = leafTaxa[k];
+					}
+					Arrays.sort(taxa, start, taxonCount);
+					clusterStart[clusterCount] = start;
+					clusterSize[clusterCount] = taxonCount - start;
+					clusterCount++;
+					i = cladeEnd[i];
+				} else {
+					i++;
+				}
+			}
+			return clusterKey();
+		}
+
+		/** @param collapse first threshold at which the parent of node is clustered **/
+		private boolean addPreorder(Node node, int collapse, double [] epsilons) {
+			if (nodeCount == collapseAt.length) {
+				return false;
+			}
+			int i = nodeCount++;
+			leafStart[i] = taxonCount;
+			if (node.isLeaf()) {
+				int taxon = getTaxon(node);
+				if (taxon < 0 || taxonCount == leafTaxa.length) {
+					return false;
+				}
+				leafTaxa[taxonCount++] = taxon;
+				collapseAt[i] = 0;
+			} else {
+				// as in addTopology, a clade is clustered if its height is at most the threshold or its parent is clustered
+				int j = Arrays.binarySearch(epsilons, node.getHeight());
+				collapseAt[i] = Math.min(collapse, j < 0 ? -j - 1 : j);
+				for (Node child : node.getChildren()) {
+					if (!addPreorder(child, collapseAt[i], epsilons)) {
+						return false;
+					}
+				}
+			}
+			leafEnd[i] = taxonCount;
+			cladeEnd[i] = nodeCount;
+			return true;
+		}
+
+		private boolean addTopology(Node node) {
+			if (node.isLeaf() || node.getHeight() <= epsilon) {
+				int start = taxonCount;
+				if (!collectTaxa(node)) {
+					return false;
+				}
+				Arrays.sort(taxa, start, taxonCount);
+				clusterStart[clusterCount] = start;
+				clusterSize[clusterCount] = taxonCount - start;
+				clusterCount++;
+				add(taxonCount - start);
+				for (int i = start; i < taxonCount; i++) {
+					add(taxa[i]);
+				}
+				return true;
+			}
+			add(OPEN);
+			boolean isValid = addTopology(node.getLeft()) && addTopology(node.getRight());
+			add(CLOSE);
+			return isValid;
+		}
+
+		private boolean collectTaxa(Node node) {
+			if (node.isLeaf()) {
+				int taxon = getTaxon(node);
+				if (taxon < 0 || taxonCount == taxa.length) {
+					return false;
+				}
+				taxa[taxonCount++] = taxon;
+				return true;
+			}
+			for (Node child : node.getChildren()) {
+				if (!collectTaxa(child)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** @return taxon number of leaf, or -1 if it is not in the tree set **/
+		private int getTaxon(Node leaf) {
+			Integer taxon = taxonIndex.get(leaf.getID());
+			return taxon == null ? -1 : taxon;
+		}
+
+		private void startHash() {
+			hash1 = 0x9E3779B97F4A7C15L;
+			hash2 = 0xC2B2AE3D27D4EB4FL;
+		}
+
+		private void add(int value) {
+			hash1 = Long.rotateLeft(hash1 ^ value, 27) * 0x87C37B91114253D5L + 0x52DCE729L;
+			hash2 = Long.rotateLeft(hash2 + value * 0x4CF5AD432745937FL, 31) * 0x9E3779B97F4A7C15L;
+		}
+
+		/** murmur3 finaliser, to spread the bits of a hash **/
+		private long finalHash(long h) {
+			h ^= h >>> 33;
+			h *= 0xFF51AFD7ED558CCDL;
+			h ^= h >>> 33;
+			h *= 0xC4CEB9FE1A85EC53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+
 	private String mapTree2Cluster(String s) {
 		s = s.replaceAll("[\\(\\),]"," ").trim();
 		String [] strs = s.split(" +");
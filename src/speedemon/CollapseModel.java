@@ -5,17 +5,17 @@ import java.util.ArrayList;
 import java.util.List;
 
 import beast.base.core.Description;
+import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.parameter.RealParameter;
 import beastfx.app.beauti.Beauti;
 import beast.base.evolution.speciation.SpeciesTreeDistribution;
-import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 
 @Description("Mixture of a custom tree prior to be used above threshold "
 		   + "and spike distribution on internal node heights")
-public class CollapseModel extends SpeciesTreeDistribution {
+public class CollapseModel extends SpeciesTreeDistribution implements ThresholdModel {
 	final public Input<RealParameter> collapseHeightInput = new Input<>("epsilon", "collapse height value below wich taxa are considered to be the same species.", Validate.REQUIRED);
     final public Input<RealParameter> collapseWeightInput =  new Input<>("weight", "mixture weight between Yule and spike density.", Validate.REQUIRED);
 	final public Input<SpeciesTreeDistribution> treepriorInput = new Input<>("treePrior", "Tree prior to be used on tree filtered to be above threshold", Validate.REQUIRED);
@@ -24,6 +24,17 @@ public class CollapseModel extends SpeciesTreeDistribution {
     private RealParameter epsilon;
     private TreeInterface tree;
 
+    // tree filtered to be above epsilon, only refiltered where the tree changed
+    private TreeAboveThreshold treeAboveThreshold;
+
+    // number of internal nodes with height > epsilon as last calculated, used to log the cluster count.
+    // Unlike the count in calculateLogP, nodes at epsilon are not included, since ClusterCounter merges them
+    private int aboveThresholdCount, storedAboveThresholdCount;
+    // epsilon used when aboveThresholdCount was calculated; NaN if it was not calculated for the current tree
+    private double countedEpsilon = Double.NaN, storedCountedEpsilon = Double.NaN;
+    // buffer for counting clusters when aboveThresholdCount is not up to date
+    private int [] clusters;
+
     @Override
     public void initAndValidate() {
     	if (Beauti.isInBeauti()) {
@@ -31,37 +42,75 @@ public class CollapseModel extends SpeciesTreeDistribution {
     	}
     	super.initAndValidate();
     	epsilon = collapseHeightInput.get();
-    	ClusterTreeSetAnalyser.EPSILON = epsilon.getValue();
     	weight = collapseWeightInput.get();
 		tree = treeInput.get() == null ?
 				treeIntervalsInput.get().treeInput.get():
 					treeInput.get();
+		treeAboveThreshold = new TreeAboveThreshold(tree);
+		clusters = new int[tree.getNodeCount()];
+		countedEpsilon = Double.NaN;
     }
     
 	@Override
 	public double calculateLogP() {
 		double epsilon = this.epsilon.getValue();
 
-		TreeAboveThreshold treeAboveThreshold = new TreeAboveThreshold();
-		treeAboveThreshold.assignFrom((Tree) tree);
-		treeAboveThreshold.filterTree(tree, epsilon);
-		logP = treepriorInput.get().calculateTreeLogLikelihood(treeAboveThreshold);
+		logP = treepriorInput.get().calculateTreeLogLikelihood(getTreeAboveThreshold(epsilon));
 		
 		double w = this.weight.getValue();
 		
 		int k = 0; // number of node heights >= epsilon
+		int above = 0; // number of node heights > epsilon
 		int n = tree.getInternalNodeCount(); // number of internal nodes
 		for (int i = 0; i < n; i++) {
-			if (tree.getNode(n + 1 + i).getHeight() >= epsilon) {
+			double height = tree.getNode(n + 1 + i).getHeight();
+			if (height >= epsilon) {
 				k++;
+				if (height > epsilon) {
+					above++;
+				}
 			}
 		}
 
+		aboveThresholdCount = above;
+		countedEpsilon = epsilon;
+
 		logP += k * Math.log(1-w) + (n-k) * Math.log(w/epsilon);
 	
 		return logP;
     }
 
+	@Override
+	public Function getEpsilon() {
+		return collapseHeightInput.get();
+	}
+
+	/**
+	 * @return tree filtered to be above epsilon. Only nodes that changed since the
+	 * last call are refiltered.
+	 */
+	private TreeAboveThreshold getTreeAboveThreshold(double epsilon) {
+		treeAboveThreshold.refilterTree(tree, epsilon);
+		return treeAboveThreshold;
+	}
+
+	@Override
+	public void store() {
+		super.store();
+		treeAboveThreshold.clearChangedNodes();
+		storedAboveThresholdCount = aboveThresholdCount;
+		storedCountedEpsilon = countedEpsilon;
+	}
+
+	@Override
+	public void restore() {
+		super.restore();
+		// tree and epsilon are already restored, bring the filtered tree back in line with them
+		treeAboveThreshold.refilterTree(tree, epsilon.getValue());
+		aboveThresholdCount = storedAboveThresholdCount;
+		countedEpsilon = storedCountedEpsilon;
+	}
+
 	@Override
 	public double calculateTreeLogLikelihood(TreeInterface tree) {
 		return this.calculateLogP();
@@ -92,10 +141,20 @@ public class CollapseModel extends SpeciesTreeDistribution {
 	public void log(long sampleNr, PrintStream out) {
 		super.log(sampleNr, out);
 		
-		int [] map = new int[tree.getLeafNodeCount()];
-		boolean [] done = new boolean[tree.getLeafNodeCount()];
-		int clusterCount = YuleSkylineCollapse.countClusters(tree, map, done, epsilon.getValue());
-		out.append(clusterCount + "\t");
+		out.append(getClusterCount() + "\t");
+	}
+
+	/**
+	 * @return number of clusters, taken from the threshold partition of the last calculateLogP
+	 * if epsilon did not change since, otherwise counted on the tree
+	 */
+	private int getClusterCount() {
+		double epsilon = this.epsilon.getValue();
+		if (epsilon == countedEpsilon) {
+			// every internal node at or below epsilon merges two clusters, as in ClusterCounter
+			return tree.getLeafNodeCount() - tree.getInternalNodeCount() + aboveThresholdCount;
+		}
+		return ClusterCounter.countClusters(tree, clusters, epsilon);
 	}
     
 
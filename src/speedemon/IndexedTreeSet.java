@@ -0,0 +1,343 @@
+package speedemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import beast.base.core.Log;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+
+/**
+ * Random access to the trees in a NEXUS tree file, or a file with one Newick tree per line.
+ * The file is memory mapped, and the byte offsets of its tree statements are found once
+ * and cached in a file next to it (tree file name + ".idx"), so that skipping burn-in
+ * and parsing trees in parallel need no scan of the file, and a rerun needs no scan at all.
+ * The cache is rebuilt when size or modification time of the tree file changes.
+ */
+public class IndexedTreeSet implements Closeable {
+
+	final static int MAGIC = 0x53544958;
+	final static int VERSION = 1;
+	// size of memory mapped segments; files larger than this are mapped in multiple segments
+	final static int SEGMENT_SHIFT = 30;
+	final static long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+	private File file;
+	private long fileLength;
+	private MappedByteBuffer [] segments;
+
+	// start of and number of bytes in tree statements (NEXUS) or lines (Newick)
+	private long [] offsets;
+	private int [] lengths;
+	private int treeCount;
+	// translate command, translateOffset < 0 if there is none
+	private long translateOffset = -1;
+	private int translateLength;
+	// label in tree statement -> taxon name, null if labels are taxon names
+	private Map<String,String> translation;
+
+	/** index file, using and updating the cached index **/
+	public IndexedTreeSet(File file) throws IOException {
+		this(file, true);
+	}
+
+	/**
+	 * @param useCache whether to read the index from and write it to
+	 * the cache file. Not worth it for files with a single tree.
+	 */
+	public IndexedTreeSet(File file, boolean useCache) throws IOException {
+		this.file = file;
+		map();
+		File indexFile = getIndexFile(file);
+		if (!useCache || !readIndex(indexFile)) {
+			buildIndex();
+			if (useCache) {
+				writeIndex(indexFile);
+			}
+		}
+		translation = translateOffset < 0 ? null : parseTranslation(getString(translateOffset, translateLength));
+	}
+
+	public static File getIndexFile(File file) {
+		return new File(file.getPath() + ".idx");
+	}
+
+	public int getTreeCount() {
+		return treeCount;
+	}
+
+	/** @return i-th tree in the file, parsed anew every call **/
+	public Tree getTree(int i) {
+		if (i < 0 || i >= treeCount) {
+			throw new IndexOutOfBoundsException("Tree " + i + " requested, but " + file.getPath() + " has " + treeCount + " trees");
+		}
+		String statement = getString(offsets[i], lengths[i]);
+		int start = statement.indexOf('(');
+		if (start < 0) {
+			throw new IllegalArgumentException("Could not find Newick tree in '" + statement + "' in " + file.getPath());
+		}
+		Tree tree = new TreeParser(statement.substring(start), false, false, true, 1);
+		if (translation != null) {
+			for (int j = 0; j < tree.getLeafNodeCount(); j++) {
+				Node node = tree.getNode(j);
+				String taxon = translation.get(node.getID());
+				if (taxon != null) {
+					node.setID(taxon);
+				}
+			}
+		}
+		return tree;
+	}
+
+	@Override
+	public void close() {
+		// mappings are released when garbage collected
+		segments = null;
+	}
+
+	private void map() throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			fileLength = channel.size();
+			segments = new MappedByteBuffer[(int)((fileLength + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long) i << SEGMENT_SHIFT;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, fileLength - start));
+			}
+		}
+	}
+
+	private byte get(long pos) {
+		return segments[(int)(pos >>> SEGMENT_SHIFT)].get((int)(pos & (SEGMENT_SIZE - 1)));
+	}
+
+	private String getString(long start, int length) {
+		byte [] bytes = new byte[length];
+		int segment = (int)(start >>> SEGMENT_SHIFT);
+		int pos = (int)(start & (SEGMENT_SIZE - 1));
+		int done = 0;
+		while (done < length) {
+			// duplicate so threads do not share the position of the buffer
+			ByteBuffer buf = segments[segment].duplicate();
+			buf.position(pos);
+			int n = Math.min(length - done, buf.remaining());
+			buf.get(bytes, done, n);
+			done += n;
+			segment++;
+			pos = 0;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** find tree statements (and translate command) in NEXUS file, or lines in Newick file **/
+	private void buildIndex() {
+		offsets = new long[1024];
+		lengths = new int[1024];
+		treeCount = 0;
+		translateOffset = -1;
+
+		long pos = skipWhiteSpace(0);
+		if (pos + 6 <= fileLength && getString(pos, 6).equalsIgnoreCase("#NEXUS")) {
+			indexNexus(pos + 6);
+		} else {
+			indexNewick(pos);
+		}
+	}
+
+	private void indexNexus(long pos) {
+		while (true) {
+			pos = skipWhiteSpaceAndComments(pos);
+			if (pos >= fileLength) {
+				return;
+			}
+			long start = pos;
+			long wordEnd = pos;
+			while (wordEnd < fileLength && !isWhiteSpace(get(wordEnd)) && get(wordEnd) != ';' && get(wordEnd) != '[') {
+				wordEnd++;
+			}
+			String word = getString(start, (int) Math.min(wordEnd - start, 16));
+			long end = endOfCommand(wordEnd);
+			// include the closing ';' if there is one
+			int length = (int) (Math.min(end + 1, fileLength) - start);
+			if (word.equalsIgnoreCase("tree") || word.equalsIgnoreCase("utree")) {
+				addTree(start, length);
+			} else if (word.equalsIgnoreCase("translate")) {
+				translateOffset = start;
+				translateLength = length;
+			}
+			pos = end + 1;
+		}
+	}
+
+	/** @return position of ';' ending the command, or end of file, skipping quoted strings and comments **/
+	private long endOfCommand(long pos) {
+		while (pos < fileLength) {
+			byte b = get(pos);
+			if (b == ';') {
+				return pos;
+			} else if (b == '[') {
+				pos = endOfComment(pos);
+			} else if (b == '\'' || b == '"') {
+				pos++;
+				while (pos < fileLength && get(pos) != b) {
+					pos++;
+				}
+			}
+			pos++;
+		}
+		return fileLength;
+	}
+
+	/** @return position of ']' closing the comment starting at pos, allowing for nested comments **/
+	private long endOfComment(long pos) {
+		int depth = 0;
+		while (pos < fileLength) {
+			byte b = get(pos);
+			if (b == '[') {
+				depth++;
+			} else if (b == ']' && --depth == 0) {
+				return pos;
+			}
+			pos++;
+		}
+		return fileLength;
+	}
+
+	private void indexNewick(long pos) {
+		while (pos < fileLength) {
+			pos = skipWhiteSpace(pos);
+			long start = pos;
+			while (pos < fileLength && get(pos) != '\n' && get(pos) != '\r') {
+				pos++;
+			}
+			long end = pos;
+			while (end > start && isWhiteSpace(get(end - 1))) {
+				end--;
+			}
+			if (end > start) {
+				addTree(start, (int) (end - start));
+			}
+		}
+	}
+
+	private void addTree(long offset, int length) {
+		if (treeCount == offsets.length) {
+			offsets = Arrays.copyOf(offsets, treeCount * 2);
+			lengths = Arrays.copyOf(lengths, treeCount * 2);
+		}
+		offsets[treeCount] = offset;
+		lengths[treeCount] = length;
+		treeCount++;
+	}
+
+	private long skipWhiteSpace(long pos) {
+		while (pos < fileLength && isWhiteSpace(get(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private long skipWhiteSpaceAndComments(long pos) {
+		pos = skipWhiteSpace(pos);
+		while (pos < fileLength && get(pos) == '[') {
+			pos = skipWhiteSpace(endOfComment(pos) + 1);
+		}
+		return pos;
+	}
+
+	private static boolean isWhiteSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	/** @return map of labels to taxon names in translate command **/
+	static Map<String,String> parseTranslation(String command) {
+		Map<String,String> translation = new HashMap<>();
+		// drop "translate" and the closing ';'
+		String str = command.substring("translate".length());
+		if (str.endsWith(";")) {
+			str = str.substring(0, str.length() - 1);
+		}
+		for (String entry : str.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			String [] strs = entry.split("\\s+", 2);
+			if (strs.length != 2) {
+				throw new IllegalArgumentException("Could not parse translate entry '" + entry + "'");
+			}
+			translation.put(unquote(strs[0]), unquote(strs[1].trim()));
+		}
+		return translation;
+	}
+
+	private static String unquote(String str) {
+		if (str.length() >= 2 && (str.charAt(0) == '\'' || str.charAt(0) == '"') && str.charAt(str.length() - 1) == str.charAt(0)) {
+			return str.substring(1, str.length() - 1);
+		}
+		return str;
+	}
+
+	/** @return true if the index could be read from indexFile and is up to date with the tree file **/
+	private boolean readIndex(File indexFile) {
+		if (!indexFile.exists()) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+					in.readLong() != fileLength || in.readLong() != file.lastModified()) {
+				return false;
+			}
+			translateOffset = in.readLong();
+			translateLength = in.readInt();
+			treeCount = in.readInt();
+			offsets = new long[treeCount];
+			lengths = new int[treeCount];
+			for (int i = 0; i < treeCount; i++) {
+				offsets[i] = in.readLong();
+				lengths[i] = in.readInt();
+				if (offsets[i] < 0 || offsets[i] + lengths[i] > fileLength) {
+					return false;
+				}
+			}
+			return translateOffset + translateLength <= fileLength;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void writeIndex(File indexFile) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileLength);
+			out.writeLong(file.lastModified());
+			out.writeLong(translateOffset);
+			out.writeInt(translateLength);
+			out.writeInt(treeCount);
+			for (int i = 0; i < treeCount; i++) {
+				out.writeLong(offsets[i]);
+				out.writeInt(lengths[i]);
+			}
+		} catch (IOException e) {
+			// the index is rebuilt next time
+			Log.warning("Could not write tree index " + indexFile.getPath() + ": " + e.getMessage());
+			indexFile.delete();
+		}
+	}
+}
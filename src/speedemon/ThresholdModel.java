@@ -0,0 +1,48 @@
+package speedemon;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Function;
+import beast.base.evolution.tree.TreeInterface;
+
+/**
+ * Tree prior under which taxa are considered to be in the same cluster
+ * when they coalesce below threshold height epsilon.
+ * Loggers and operators that need the threshold get it from the model
+ * through their inputs, so that analyses with different thresholds can
+ * run in the same JVM.
+ */
+public interface ThresholdModel {
+
+	/** @return threshold below which taxa are considered to be the same species **/
+	Function getEpsilon();
+
+	/**
+	 * @return threshold of the ThresholdModel that tree is an input of,
+	 * either directly or through tree intervals
+	 */
+	static Function resolveEpsilon(TreeInterface tree) {
+		Function found = null;
+		Set<BEASTInterface> candidates = new LinkedHashSet<>();
+		for (BEASTInterface o : ((BEASTInterface) tree).getOutputs()) {
+			candidates.add(o);
+			candidates.addAll(o.getOutputs());
+		}
+		for (BEASTInterface o : candidates) {
+			if (o instanceof ThresholdModel) {
+				Function threshold = ((ThresholdModel) o).getEpsilon();
+				if (found != null && found != threshold) {
+					throw new IllegalArgumentException("Tree " + tree.getID() + " is used in collapse models with different thresholds: specify epsilon");
+				}
+				found = threshold;
+			}
+		}
+		if (found == null) {
+			throw new IllegalArgumentException("Could not find a collapse model for tree " + tree.getID() +
+					": specify epsilon, or use the tree in a collapse model");
+		}
+		return found;
+	}
+}
@@ -3,10 +3,73 @@ package speedemon;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.StateNode;
 
 public class TreeAboveThreshold extends Tree {
 
-	
+	// nodeByNr[i] is the node of this tree representing node nr i of the tree being filtered
+	private Node [] nodeByNr;
+	// sourceNr[i] is the number of the node in the tree being filtered represented by m_nodes[i]
+	private int [] sourceNr;
+	// nodeIsUsed[i] is true if nodeByNr[i] is part of the filtered tree
+	private boolean [] nodeIsUsed;
+	// internal nodes of the filtered tree, collected before being moved behind the leaves
+	private Node [] internalNodes;
+
+	// epsilon used for last filtering, NaN if the tree was not filtered yet
+	private double filteredEpsilon = Double.NaN;
+
+	// nodes changed since last call to clearChangedNodes(), these are revisited by refilterTree
+	// so that the filtered tree can follow the tree being filtered when it is restored
+	private int [] changedNodes;
+	private int changedNodeCount;
+	private boolean [] isChanged;
+	// true if the whole tree was filtered since last call to clearChangedNodes()
+	private boolean allNodesChanged;
+
+	// work list of nodes to be relinked by refilterTree
+	private int [] markedNodes;
+	private int markedNodeCount;
+	private boolean [] isMarked;
+	// nodes that may have been added to or removed from the filtered tree by refilterTree
+	private int [] candidateNodes;
+	private int candidateNodeCount;
+	private boolean [] isCandidate;
+
+	public TreeAboveThreshold() {
+	}
+
+	/**
+	 * Create a tree that can be repeatedly filtered from tree
+	 * without allocating new nodes.
+	 */
+	public TreeAboveThreshold(TreeInterface tree) {
+		assignFrom((Tree) tree);
+	}
+
+	@Override
+	public void assignFrom(StateNode other) {
+		super.assignFrom(other);
+		// node numbers are reassigned when filtering, so pick up node order again at next filterTree call
+		nodeByNr = null;
+		filteredEpsilon = Double.NaN;
+	}
+
+	private void initFilterArrays() {
+		// m_nodes is still in the node order of the tree we were assigned from
+		int n = m_nodes.length;
+		nodeByNr = m_nodes.clone();
+		sourceNr = new int[n];
+		nodeIsUsed = new boolean[n];
+		internalNodes = new Node[n];
+		changedNodes = new int[n];
+		isChanged = new boolean[n];
+		markedNodes = new int[n];
+		isMarked = new boolean[n];
+		candidateNodes = new int[n];
+		isCandidate = new boolean[n];
+	}
+
 	/**
 	 * Filter out some of the taxa so that all internal nodes
 	 * are above epsilon.
@@ -16,26 +79,43 @@ public class TreeAboveThreshold extends Tree {
 	 * @param epsilon: threshold level below which nodes are removed
 	 */
 	public void filterTree(TreeInterface tree, double epsilon) {
-		for (Node node : m_nodes) {
+		if (nodeByNr == null) {
+			initFilterArrays();
+		}
+
+		for (int i = 0; i < nodeByNr.length; i++) {
+			Node node = nodeByNr[i];
 			node.removeAllChildren(false);
 			node.setParent(null);
+			nodeIsUsed[i] = false;
 		}
-		
+
 		leafNodeCount = 0;
-		copyFrom(tree.getRoot(), epsilon);
-		
-		// reorder m_nodes array
-		nodeCount = leafNodeCount;
-		for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount(); i++) {
-			if (m_nodes[i].getChildCount() != 0) {
-				// swap m_nodes[i] with latest unused node in m_nodes
-				Node tmp = m_nodes[nodeCount];
-				m_nodes[nodeCount] = m_nodes[i];
-				m_nodes[i] = tmp;
-				m_nodes[nodeCount].setNr(nodeCount);
-				nodeCount++;
+		internalNodeCount = 0;
+		root = copyFrom(tree.getRoot(), epsilon);
+		nodeCount = leafNodeCount + internalNodeCount;
+
+		// reorder m_nodes array: leaves (already in place) first,
+		// then internal nodes, then nodes not in the filtered tree
+		for (int i = 0; i < internalNodeCount; i++) {
+			m_nodes[leafNodeCount + i] = internalNodes[i];
+			internalNodes[i].setNr(leafNodeCount + i);
+		}
+		int k = nodeCount;
+		for (int i = 0; i < nodeByNr.length; i++) {
+			if (!nodeIsUsed[i]) {
+				m_nodes[k] = nodeByNr[i];
+				nodeByNr[i].setNr(k);
+				k++;
 			}
 		}
+		for (int i = 0; i < nodeByNr.length; i++) {
+			sourceNr[nodeByNr[i].getNr()] = i;
+		}
+
+		filteredEpsilon = epsilon;
+		clearChangedNodes();
+		allNodesChanged = true;
 	}
 
 	/**
@@ -43,23 +123,235 @@ public class TreeAboveThreshold extends Tree {
 	 */
 	private Node copyFrom(Node node, double epsilon) {
 		if (node.isLeaf()) {
+			Node leaf = nodeByNr[node.getNr()];
+			leaf.setHeight(node.getHeight());
+			nodeIsUsed[node.getNr()] = true;
+			m_nodes[leafNodeCount] = leaf;
+			leaf.setNr(leafNodeCount);
 			leafNodeCount++;
-			m_nodes[leafNodeCount-1].setHeight(node.getHeight());			
-			return m_nodes[leafNodeCount-1];
+			return leaf;
 		} else {
-			Node left = copyFrom(node.getLeft(), epsilon);
 			if (node.getHeight() <= epsilon) {
-				return left;
+				// collapsed clade is represented by its left most leaf
+				return copyFrom(node.getLeft(), epsilon);
 			}
-			Node right = copyFrom(node.getLeft(), epsilon);
-			
-			Node thisNode = m_nodes[node.getNr()];
+			Node left = copyFrom(node.getLeft(), epsilon);
+			Node right = copyFrom(node.getRight(), epsilon);
+
+			Node thisNode = nodeByNr[node.getNr()];
+			thisNode.setHeight(node.getHeight());
 			thisNode.addChild(left);
 			thisNode.addChild(right);
+			nodeIsUsed[node.getNr()] = true;
+			internalNodes[internalNodeCount++] = thisNode;
 			return thisNode;
 		}
 	}
-	
-	
-	
+
+	/**
+	 * Incremental version of filterTree: only the parts of the filtered tree
+	 * affected by nodes that are dirty in tree, or that changed since the last
+	 * call to clearChangedNodes(), are relinked.
+	 * Falls back to filterTree if epsilon changed or the tree was not filtered before.
+	 * This assumes tree operators mark nodes that get a new parent as dirty, as BEAST operators do.
+	 */
+	public void refilterTree(TreeInterface tree, double epsilon) {
+		if (nodeByNr == null || epsilon != filteredEpsilon || allNodesChanged) {
+			filterTree(tree, epsilon);
+			return;
+		}
+		if (changedNodeCount == 0 && !tree.somethingIsDirty()) {
+			return;
+		}
+
+		// nodes changed in earlier calls are revisited, since tree may have been restored since
+		int n = changedNodeCount;
+		for (int i = 0; i < n; i++) {
+			markChangedNode(tree, changedNodes[i], epsilon);
+		}
+		if (tree.somethingIsDirty()) {
+			for (int i = 0; i < nodeByNr.length; i++) {
+				if (tree.getNode(i).isDirty() != Tree.IS_CLEAN) {
+					markChangedNode(tree, i, epsilon);
+				}
+			}
+		}
+
+		// relink marked nodes; this can mark more nodes, which are picked up by the same loop
+		for (int i = 0; i < markedNodeCount; i++) {
+			relink(tree, markedNodes[i], epsilon);
+		}
+		for (int i = 0; i < markedNodeCount; i++) {
+			isMarked[markedNodes[i]] = false;
+		}
+		markedNodeCount = 0;
+
+		Node newRoot = representative(tree.getRoot(), epsilon);
+		if (newRoot != root) {
+			addCandidate(sourceNr[root.getNr()]);
+			addCandidate(sourceNr[newRoot.getNr()]);
+			root = newRoot;
+		}
+
+		// move nodes that entered or left the filtered tree, keeping
+		// leaves first, then internal nodes, then nodes not in the filtered tree in m_nodes
+		int sourceLeafCount = tree.getLeafNodeCount();
+		for (int i = 0; i < candidateNodeCount; i++) {
+			int nr = candidateNodes[i];
+			isCandidate[nr] = false;
+			Node node = nodeByNr[nr];
+			boolean isUsed = node == root || node.getParent() != null;
+			if (isUsed != nodeIsUsed[nr]) {
+				nodeIsUsed[nr] = isUsed;
+				int pos = node.getNr();
+				if (nr < sourceLeafCount) {
+					if (isUsed) {
+						swapNodes(pos, leafNodeCount + internalNodeCount);
+						swapNodes(leafNodeCount, leafNodeCount + internalNodeCount);
+						leafNodeCount++;
+					} else {
+						swapNodes(pos, leafNodeCount - 1);
+						swapNodes(leafNodeCount - 1, leafNodeCount - 1 + internalNodeCount);
+						leafNodeCount--;
+					}
+				} else {
+					if (isUsed) {
+						swapNodes(pos, leafNodeCount + internalNodeCount);
+						internalNodeCount++;
+					} else {
+						swapNodes(pos, leafNodeCount + internalNodeCount - 1);
+						internalNodeCount--;
+					}
+				}
+			}
+		}
+		candidateNodeCount = 0;
+		nodeCount = leafNodeCount + internalNodeCount;
+	}
+
+	/**
+	 * Forget about nodes changed so far, to be called when the state of the tree being filtered
+	 * is stored while the filtered tree is up to date with it. Until the next call, refilterTree
+	 * revisits all nodes changed, so that calling refilterTree after the tree is restored
+	 * brings the filtered tree back to the stored state.
+	 */
+	public void clearChangedNodes() {
+		if (nodeByNr == null) {
+			return;
+		}
+		for (int i = 0; i < changedNodeCount; i++) {
+			isChanged[changedNodes[i]] = false;
+		}
+		changedNodeCount = 0;
+		allNodesChanged = false;
+	}
+
+	/**
+	 * mark node nr i of tree for relinking, as well as the nodes of the filtered
+	 * tree that may have it (or the clade it is in) as a child
+	 */
+	private void markChangedNode(TreeInterface tree, int i, double epsilon) {
+		mark(i);
+		Node parent = nodeByNr[i].getParent();
+		if (parent != null) {
+			mark(sourceNr[parent.getNr()]);
+		}
+		Node node = tree.getNode(i).getParent();
+		while (node != null && node.getHeight() <= epsilon) {
+			node = node.getParent();
+		}
+		if (node != null) {
+			mark(node.getNr());
+		}
+	}
+
+	private void mark(int i) {
+		if (!isMarked[i]) {
+			isMarked[i] = true;
+			markedNodes[markedNodeCount++] = i;
+		}
+		if (!isChanged[i]) {
+			isChanged[i] = true;
+			changedNodes[changedNodeCount++] = i;
+		}
+	}
+
+	private void addCandidate(int i) {
+		if (!isCandidate[i]) {
+			isCandidate[i] = true;
+			candidateNodes[candidateNodeCount++] = i;
+		}
+	}
+
+	/** make children of node representing node nr i of tree match that of tree **/
+	private void relink(TreeInterface tree, int i, double epsilon) {
+		Node source = tree.getNode(i);
+		Node node = nodeByNr[i];
+		addCandidate(i);
+		if (source.isLeaf() || source.getHeight() <= epsilon) {
+			detachChildren(node);
+			return;
+		}
+		node.setHeight(source.getHeight());
+		Node left = representative(source.getLeft(), epsilon);
+		Node right = representative(source.getRight(), epsilon);
+		if (node.getChildCount() == 2 && node.getLeft() == left && node.getRight() == right) {
+			return;
+		}
+		detachChildren(node);
+		attachChild(node, left);
+		attachChild(node, right);
+	}
+
+	private void detachChildren(Node node) {
+		for (int j = 0; j < node.getChildCount(); j++) {
+			Node child = node.getChild(j);
+			if (child.getParent() == node) {
+				child.setParent(null);
+				addCandidate(sourceNr[child.getNr()]);
+			}
+		}
+		node.removeAllChildren(false);
+	}
+
+	private void attachChild(Node node, Node child) {
+		Node oldParent = child.getParent();
+		if (oldParent != null) {
+			// oldParent is out of date and lost a child, so needs relinking as well
+			oldParent.removeChild(child);
+			mark(sourceNr[oldParent.getNr()]);
+		}
+		node.addChild(child);
+		addCandidate(sourceNr[child.getNr()]);
+	}
+
+	/**
+	 * @return node in filtered tree representing node of the tree being filtered:
+	 * the node itself if it is above epsilon or a leaf, otherwise the left most leaf of its clade
+	 */
+	private Node representative(Node node, double epsilon) {
+		while (!node.isLeaf() && node.getHeight() <= epsilon) {
+			node = node.getLeft();
+		}
+		Node representative = nodeByNr[node.getNr()];
+		if (node.isLeaf()) {
+			representative.setHeight(node.getHeight());
+		}
+		return representative;
+	}
+
+	private void swapNodes(int i, int j) {
+		if (i == j) {
+			return;
+		}
+		Node tmp = m_nodes[i];
+		m_nodes[i] = m_nodes[j];
+		m_nodes[j] = tmp;
+		m_nodes[i].setNr(i);
+		m_nodes[j].setNr(j);
+		int tmpNr = sourceNr[i];
+		sourceNr[i] = sourceNr[j];
+		sourceNr[j] = tmpNr;
+	}
+
 }
@@ -27,6 +27,15 @@ public class UniformThresholdOperator extends Uniform {
 	
 	
 	
+	// candidates[0..candidateCount) are numbers of the nodes that can be moved across the threshold
+	private int [] candidates;
+	
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		candidates = new int[treeInput.get().getNodeCount()];
+	}
+	
 	  /**
      * change the parameter and return the hastings ratio.
      *
@@ -42,23 +51,43 @@ public class UniformThresholdOperator extends Uniform {
         boolean startAboveThreshold = Randomizer.nextBoolean();
        
         
-        // Get candidate nodes
-        List<Node> eligibleNodesBefore = getCandidates(tree, epsilon, startAboveThreshold);
-        int nOptionsBefore = eligibleNodesBefore.size();
-    	
-        
-       // System.out.println("nOptionsBefore " + nOptionsBefore + " " + startAboveThreshold);
-        
+        // Get candidate nodes, in the same order as getCandidates, 
+        // and count candidates for the reverse move in the same pass
+        Node [] nodes = tree.getNodesAsArray();
+        int nOptionsBefore = 0;
+        int nReverseOptionsBefore = 0;
+    	for (int i = 0; i < tree.getNodeCount(); i++) {
+    		Node parent = nodes[i];
+    		if (parent.isLeaf() || parent.getHeight() < epsilon) continue;
+    		
+    		boolean allChildrenBelowEpsilon = true;
+    		for (Node c : parent.getChildren()) {
+    			if (c.getHeight() > epsilon) {
+    				allChildrenBelowEpsilon = false;
+    			} else if (!c.isLeaf()) {
+    				if (startAboveThreshold) {
+    					nReverseOptionsBefore++;
+    				} else {
+    					candidates[nOptionsBefore++] = c.getNr();
+    				}
+    			}
+    		}
+    		
+    		if (allChildrenBelowEpsilon && !parent.isRoot()) {
+    			if (startAboveThreshold) {
+    				candidates[nOptionsBefore++] = parent.getNr();
+    			} else {
+    				nReverseOptionsBefore++;
+    			}
+    		}
+    	}
     	
     	// If not possible, then reject proposal
     	if (nOptionsBefore == 0) return Double.NEGATIVE_INFINITY;
     	
     	
-    	
-    	
-    	
-    	int num = Randomizer.nextInt(eligibleNodesBefore.size());
-    	Node node = eligibleNodesBefore.get(num);
+    	int num = Randomizer.nextInt(nOptionsBefore);
+    	Node node = nodes[candidates[num]];
     	
     	
     	// Moving up or down?
@@ -71,9 +100,8 @@ public class UniformThresholdOperator extends Uniform {
         	lowerBefore = epsilon;
         }
     	
-
-        
-       
+        // only candidacy of node, its parent and its children depends on the height of node
+        int nearbyReverseOptions = countNearbyCandidates(node, epsilon, !startAboveThreshold);
 
         // Move value into range uniformly at random
         final double newValue = (Randomizer.nextDouble() * (upperBefore - lowerBefore)) + lowerBefore;
@@ -94,19 +122,49 @@ public class UniformThresholdOperator extends Uniform {
         
         
         // Hastings ratio contribution from node sampling
-        List<Node> eligibleNodesAfter = getCandidates(tree, epsilon, !startAboveThreshold);
-        int nOptionsAfter = eligibleNodesAfter.size();
+        int nOptionsAfter = nReverseOptionsBefore - nearbyReverseOptions + countNearbyCandidates(node, epsilon, !startAboveThreshold);
         logHR += Math.log(nOptionsBefore) - Math.log(nOptionsAfter);
         
         
-       // System.out.println("nOptionsAfter " + nOptionsAfter);
-        
-        
-        
         return logHR;
     }
 
     
+    /** @return number of candidates among node, its parent and its children **/
+    private int countNearbyCandidates(Node node, double epsilon, boolean startAboveThreshold) {
+    	int count = isCandidate(node, epsilon, startAboveThreshold) ? 1 : 0;
+    	if (!node.isRoot() && isCandidate(node.getParent(), epsilon, startAboveThreshold)) {
+    		count++;
+    	}
+    	for (Node c : node.getChildren()) {
+    		if (isCandidate(c, epsilon, startAboveThreshold)) {
+    			count++;
+    		}
+    	}
+    	return count;
+    }
+
+    /** @return whether node is in the list returned by getCandidates **/
+    private boolean isCandidate(Node node, double epsilon, boolean startAboveThreshold) {
+    	if (node.isLeaf() || node.isRoot()) {
+    		return false;
+    	}
+    	if (startAboveThreshold) {
+    		// internal node above threshold with all children below threshold
+    		if (node.getHeight() < epsilon) {
+    			return false;
+    		}
+    		for (Node c : node.getChildren()) {
+    			if (c.getHeight() > epsilon) {
+    				return false;
+    			}
+    		}
+    		return true;
+    	}
+    	// internal node below threshold with parent above threshold
+    	return node.getHeight() <= epsilon && node.getParent().getHeight() >= epsilon;
+    }
+    
     
     /**
      * Get a list of candidate nodes above/below boundary
@@ -4,9 +4,13 @@ package speedemon;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import beast.base.core.Citation;
 import beast.base.core.Description;
@@ -26,7 +30,7 @@ import biceps.YuleSkyline;
 		+ " under a gamma prior"
 		+ " and spike distribution on internal node heights")
 @Citation(value="Jordan Douglas and Remco Bouckaert. Quantitatively defining species boundaries with more efficiency and more biological realism. Communications Biology 5, 755 (2022)", DOI="110.1038/s42003-022-03723-z")
-public class YuleSkylineCollapse extends YuleSkyline {
+public class YuleSkylineCollapse extends YuleSkyline implements ThresholdModel {
 
     final public Input<Function> collapseHeightInput = new Input<>("epsilon", "collapse height value below wich taxa are considered to be the same species.", Validate.REQUIRED);
     final public Input<RealParameter> collapseWeightInput =  new Input<>("weight", "mixture weight between Yule and spike density.", Validate.REQUIRED);
@@ -35,6 +39,21 @@ public class YuleSkylineCollapse extends YuleSkyline {
     private Function epsilon;
     private TreeInterface tree;
 
+    // isAboveThreshold[i] is true if the height of internal node i is >= epsilon, isAtThreshold[i] if it is == epsilon.
+    // Nodes at epsilon count as above in the density, but are merged by ClusterCounter, so are not counted as clusters
+    private boolean [] isAboveThreshold, isAtThreshold;
+    private int aboveThresholdCount, storedAboveThresholdCount;
+    private int atThresholdCount, storedAtThresholdCount;
+    // epsilon used when isAboveThreshold was last fully counted; NaN forces a recount
+    private double countedEpsilon = Double.NaN, storedCountedEpsilon = Double.NaN;
+    // journal of entries of isAboveThreshold changed since the last store(), so restore() is O(changed nodes)
+    private int [] changedNodes;
+    private int changedNodeCount;
+    private boolean [] isChanged;
+    private boolean [] storedIsAboveThreshold, storedIsAtThreshold;
+    // buffer for counting clusters when isAboveThreshold is not up to date
+    private int [] clusters;
+
     @Override
     public void initAndValidate() {
     	if (ProgramStatus.name.equals("BEAUti")) {
@@ -42,13 +61,27 @@ public class YuleSkylineCollapse extends YuleSkyline {
     	}
     	super.initAndValidate();
     	epsilon = collapseHeightInput.get();
-    	ClusterTreeSetAnalyser.EPSILON = epsilon.getArrayValue();
     	weight = collapseWeightInput.get();
 		tree = treeInput.get() == null ?
 				treeIntervalsInput.get().treeInput.get():
 					treeInput.get();
+
+		int nodeCount = tree.getNodeCount();
+		isAboveThreshold = new boolean[nodeCount];
+		storedIsAboveThreshold = new boolean[nodeCount];
+		isAtThreshold = new boolean[nodeCount];
+		storedIsAtThreshold = new boolean[nodeCount];
+		isChanged = new boolean[nodeCount];
+		changedNodes = new int[nodeCount];
+		clusters = new int[nodeCount];
+		changedNodeCount = 0;
+		countedEpsilon = Double.NaN;
     }
 
+	@Override
+	public Function getEpsilon() {
+		return collapseHeightInput.get();
+	}
 
     
 	@Override
@@ -59,61 +92,89 @@ public class YuleSkylineCollapse extends YuleSkyline {
 		
 		double w = this.weight.getValue();
 		
-		int k = 0; // number of node heights >= epsilon
+		int k = countAboveThreshold(epsilon); // number of node heights >= epsilon
 		int n = tree.getInternalNodeCount(); // number of internal nodes
-		for (int i = 0; i < n; i++) {
-			if (tree.getNode(n + 1 + i).getHeight() >= epsilon) {
-				k++;
-			}
-		}
 
 		logP += k * Math.log(1-w) + (n-k) * Math.log(w/epsilon);
 	
 		return logP;
     }
 
-	
-
-	public static int countClusters(TreeInterface tree, int [] map, boolean [] done, double epsilon) {
-		Node [] nodes = tree.getNodesAsArray();
-		
-		Arrays.fill(map, -1);
-		Arrays.fill(done, false);
-
-		int k = 0;
-		for (int i = 0; i < tree.getLeafNodeCount(); i++) {
-			if (!done[i]) {
-				if (nodes[i].getLength() >= epsilon) {
-					map[i] = k;
-					done[i] = true;
-				} else {
-					// nodes[i] is part of a cluster
-					Node node = nodes[i];
-					while (!node.isRoot() && node.getParent().getHeight() <= epsilon) {
-						node = node.getParent();
-					}
-					visit(node,k,map,done);
+	/**
+	 * Number of internal nodes with height >= epsilon.
+	 * Only nodes marked dirty in the tree are re-examined, unless epsilon changed
+	 * since the last call, in which case all internal nodes are recounted.
+	 */
+	private int countAboveThreshold(double epsilon) {
+		int first = tree.getLeafNodeCount();
+		int last = tree.getNodeCount();
+		if (epsilon != countedEpsilon) {
+			for (int i = first; i < last; i++) {
+				setAboveThreshold(i, tree.getNode(i).getHeight(), epsilon);
+			}
+			countedEpsilon = epsilon;
+		} else if (tree.somethingIsDirty()) {
+			for (int i = first; i < last; i++) {
+				Node node = tree.getNode(i);
+				if (node.isDirty() != Tree.IS_CLEAN) {
+					setAboveThreshold(i, node.getHeight(), epsilon);
 				}
-				k++;
 			}
 		}
-		return k;
+		return aboveThresholdCount;
 	}
-	
-    private static void visit(Node node, int k, int[] map, boolean[] done) {
-		if (node.isLeaf()) {
-			int i = node.getNr();
-			map[i] = k;
-			done[i] = true;
-		} else {
-			for (Node child : node.getChildren()) {
-				visit(child, k, map, done);
-			}
+
+	private void setAboveThreshold(int i, double height, double epsilon) {
+		boolean isAbove = height >= epsilon;
+		boolean isAt = height == epsilon;
+		if (isAboveThreshold[i] == isAbove && isAtThreshold[i] == isAt) {
+			return;
+		}
+		if (!isChanged[i]) {
+			isChanged[i] = true;
+			storedIsAboveThreshold[i] = isAboveThreshold[i];
+			storedIsAtThreshold[i] = isAtThreshold[i];
+			changedNodes[changedNodeCount++] = i;
+		}
+		if (isAboveThreshold[i] != isAbove) {
+			isAboveThreshold[i] = isAbove;
+			aboveThresholdCount += isAbove ? 1 : -1;
+		}
+		if (isAtThreshold[i] != isAt) {
+			isAtThreshold[i] = isAt;
+			atThresholdCount += isAt ? 1 : -1;
 		}
 	}
 
-    
-    
+	@Override
+	public void store() {
+		super.store();
+		for (int j = 0; j < changedNodeCount; j++) {
+			isChanged[changedNodes[j]] = false;
+		}
+		changedNodeCount = 0;
+		storedAboveThresholdCount = aboveThresholdCount;
+		storedAtThresholdCount = atThresholdCount;
+		storedCountedEpsilon = countedEpsilon;
+	}
+
+	@Override
+	public void restore() {
+		super.restore();
+		for (int j = 0; j < changedNodeCount; j++) {
+			int i = changedNodes[j];
+			isAboveThreshold[i] = storedIsAboveThreshold[i];
+			isAtThreshold[i] = storedIsAtThreshold[i];
+			isChanged[i] = false;
+		}
+		changedNodeCount = 0;
+		aboveThresholdCount = storedAboveThresholdCount;
+		atThresholdCount = storedAtThresholdCount;
+		countedEpsilon = storedCountedEpsilon;
+	}
+
+	
+
 	@Override
 	public void init(PrintStream out) {
 		super.init(out);
@@ -125,10 +186,20 @@ public class YuleSkylineCollapse extends YuleSkyline {
 	public void log(long sampleNr, PrintStream out) {
 		super.log(sampleNr, out);
 		
-		int [] map = new int[tree.getLeafNodeCount()];
-		boolean [] done = new boolean[tree.getLeafNodeCount()];
-		int clusterCount = countClusters(tree, map, done, epsilon.getArrayValue());
-		out.append(clusterCount + "\t");
+		out.append(getClusterCount() + "\t");
+	}
+
+	/**
+	 * @return number of clusters, taken from the threshold partition of the last calculateLogP
+	 * if epsilon did not change since, otherwise counted on the tree
+	 */
+	private int getClusterCount() {
+		double epsilon = this.epsilon.getArrayValue();
+		if (epsilon == countedEpsilon) {
+			// every internal node at or below epsilon merges two clusters, as in ClusterCounter
+			return tree.getLeafNodeCount() - tree.getInternalNodeCount() + aboveThresholdCount - atThresholdCount;
+		}
+		return ClusterCounter.countClusters(tree, clusters, epsilon);
 	}
 
 
@@ -159,16 +230,7 @@ public class YuleSkylineCollapse extends YuleSkyline {
 			//throw new IllegalArgumentException(YuleSkylineCollapse.class.getCanonicalName() + ": please ensure that non equal epochs are used (set equalEpochs to false)");
 		}
 		
-		if (linkedMeanInput.get()) {
-			throw new IllegalArgumentException(YuleSkylineCollapse.class.getCanonicalName() + ": please ensure that linkedMean is false");
-		}
-		
-		if (groupCount != 1) {
-			throw new IllegalArgumentException(YuleSkylineCollapse.class.getCanonicalName() + ": please ensure that groupCount is 1");
-		}
-		
-		
-		
+		checkCanSample();
         
         if (!isPrepared) {
             prepare();
@@ -181,124 +243,189 @@ public class YuleSkylineCollapse extends YuleSkyline {
         double w = collapseWeightInput.get().getValue();
         double epsilon = collapseHeightInput.get().getArrayValue();
 
-        
-        // Simulate tree conditional on new parameters
-        List<Node> activeLineages = new ArrayList<>();
-        for (Node oldLeaf : tree.getExternalNodes()) {
-            Node newLeaf = new Node(oldLeaf.getID());
-            newLeaf.setNr(oldLeaf.getNr());
-            newLeaf.setHeight(0.0);
-            activeLineages.add(newLeaf);
+		// Sample Yule birth rates
+		double[] birthRates = this.sampleBirthRates()[0];
+
+        Node root = simulate(getTaxa(tree), w, epsilon, birthRates, getGroupSizes(), random);
+        tree.assignFromWithoutID(new Tree(root));
+        // the whole tree is replaced, so force a full recount of the spike term
+        countedEpsilon = Double.NaN;
+	}
 
+
+	/**
+	 * Simulates replicate trees under the current values of weight and epsilon, using multiple threads.
+	 * Birth rates and tree of every replicate are drawn from its own random number stream derived from seed,
+	 * so the trees do not depend on the number of threads, and Randomizer is not used.
+	 */
+	public Tree [] simulate(int replicates, int threads, long seed) throws InterruptedException, ExecutionException {
+		checkCanSample();
+        if (!isPrepared) {
+            prepare();
         }
-        
-        
-        
+		String [] taxa = getTaxa(treeInput.get());
+		int [] groupSizes = getGroupSizes();
+        double w = collapseWeightInput.get().getValue();
+        double epsilon = collapseHeightInput.get().getArrayValue();
+        double shape = birthRateShapeInput.get().getArrayValue();
+        double rate = birthRateRateInput.get().getArrayValue();
+        SplittableRandom seeds = new SplittableRandom(seed);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Tree>> trees = new ArrayList<>();
+			for (int i = 0; i < replicates; i++) {
+				Random random = new Random(seeds.nextLong());
+				trees.add(executor.submit(() -> {
+					double [] birthRates = sampleBirthRates(groupSizes.length, shape, rate, random);
+					return new Tree(simulate(taxa, w, epsilon, birthRates, groupSizes, random));
+				}));
+			}
+			Tree [] result = new Tree[replicates];
+			for (int i = 0; i < replicates; i++) {
+				result[i] = trees.get(i).get();
+			}
+			return result;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Birth rates of epochs drawn independently from the gamma prior with given shape and rate,
+	 * as sampleBirthRates does when linkedMean is false, but from random instead of Randomizer
+	 */
+	static double [] sampleBirthRates(int epochs, double shape, double rate, Random random) {
+		double [] birthRates = new double[epochs];
+		for (int i = 0; i < epochs; i++) {
+			birthRates[i] = nextGamma(shape, random) / rate;
+		}
+		return birthRates;
+	}
+
+	/** @return draw from gamma distribution with given shape and rate 1, by the method of Marsaglia and Tsang **/
+	static double nextGamma(double shape, Random random) {
+		if (shape < 1) {
+			// boost to shape + 1, and scale back by U^(1/shape)
+			return nextGamma(shape + 1, random) * Math.pow(random.nextDouble(), 1 / shape);
+		}
+		double d = shape - 1.0 / 3;
+		double c = 1 / Math.sqrt(9 * d);
+		while (true) {
+			double x, v;
+			do {
+				x = random.nextGaussian();
+				v = 1 + c * x;
+			} while (v <= 0);
+			v = v * v * v;
+			double u = random.nextDouble();
+			if (Math.log(u) < 0.5 * x * x + d - d * v + d * Math.log(v)) {
+				return d * v;
+			}
+		}
+	}
+
+	private void checkCanSample() {
+		if (linkedMeanInput.get()) {
+			throw new IllegalArgumentException(YuleSkylineCollapse.class.getCanonicalName() + ": please ensure that linkedMean is false");
+		}
+		
+		if (groupCount != 1) {
+			throw new IllegalArgumentException(YuleSkylineCollapse.class.getCanonicalName() + ": please ensure that groupCount is 1");
+		}
+	}
+
+	/** @return taxon names by leaf node nr **/
+	private String [] getTaxa(TreeInterface tree) {
+		String [] taxa = new String[tree.getLeafNodeCount()];
+		for (int i = 0; i < taxa.length; i++) {
+			taxa[i] = tree.getNode(i).getID();
+		}
+		return taxa;
+	}
+
+	private int [] getGroupSizes() {
+		int [] sizes = new int[groupSizes.getDimension()];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = (int) groupSizes.getArrayValue(i);
+		}
+		return sizes;
+	}
+
+	/**
+	 * Simulates a tree with spike below epsilon and Yule skyline above epsilon.
+	 * Active lineages are kept in an array with swap-remove, so every coalescence takes constant time.
+	 * @return root of tree in which leaf nr i is taxa[i]
+	 */
+	static Node simulate(String [] taxa, double w, double epsilon, double [] birthRates, int [] groupSizes, Random random) {
+		int n = taxa.length;
+		Node [] activeLineages = new Node[n];
+		for (int i = 0; i < n; i++) {
+            Node leaf = new Node(taxa[i]);
+            leaf.setNr(i);
+            leaf.setHeight(0.0);
+            activeLineages[i] = leaf;
+		}
+		int k = n;
+		int nextNr = n;
+
         // How many of the internal nodes will be below epsilon? Binomial(n-1, w) distribution. Assuming binary tree
-        List<Double> collapseHeights = new ArrayList<>();
-        int n = activeLineages.size();
+		double [] collapseHeights = new double[Math.max(n - 1, 0)];
+		int collapseCount = 0;
         for (int i = 0; i < n-1; i ++) {
         	if (random.nextDouble() < w) {
-        	
         		// Sample a collapse height
-        		double h = random.nextDouble() * epsilon;
-        		collapseHeights.add(h);
-        		
+        		collapseHeights[collapseCount++] = random.nextDouble() * epsilon;
         	}
-        	
         }
-	
-	
-        int nextNr = activeLineages.size();
-	
+
 		// Create collapse epoch
-		Collections.sort(collapseHeights);
-		for (int i = 0; i < collapseHeights.size(); i ++) {
-			
-			
-			double t = collapseHeights.get(i);
-			int k = activeLineages.size();
-			
-			// Sample 2 nodes
-			Node node1 = activeLineages.get(random.nextInt(k));
-            Node node2;
-            do {
-                node2 = activeLineages.get(random.nextInt(k));
-            } while (node2.equals(node1));
-            
-            
-            
-            // Join them
-            Node newParent = new Node();
-            newParent.setNr(nextNr++);
-            newParent.setHeight(t);
-            newParent.addChild(node1);
-            newParent.addChild(node2);
-
-            activeLineages.remove(node1);
-            activeLineages.remove(node2);
-            activeLineages.add(newParent);
-  
-			
+		Arrays.sort(collapseHeights, 0, collapseCount);
+		for (int i = 0; i < collapseCount; i++) {
+			k = join(activeLineages, k, collapseHeights[i], nextNr++, random);
 		}
 
-        
-
-		// Sample Yule birth rates
-		double[][] rates = this.sampleBirthRates();
-	    double[] birthRates = rates[0];
-	    
 	    // Epoch 0
 	    int epochNumber = 0;
 	    double birthRate = birthRates[epochNumber];
-        int groupSize = (int)groupSizes.getArrayValue(epochNumber);
-	    
-	    
-        
+        int groupSize = groupSizes[epochNumber];
+
 		// Sample from Yule beginning at time epsilon
         double t = epsilon;
-        while (activeLineages.size() > 1) {
-            int k = activeLineages.size();
-            
-            
+        while (k > 1) {
             // Proceed to the next epoch
             if (k <= groupSize) {
             	epochNumber++;
             	birthRate = birthRates[epochNumber];
-                groupSize = (int)groupSizes.getArrayValue(epochNumber);
+                groupSize = groupSizes[epochNumber];
             }
-    
-    		
-  
+
     		// Sample from Yule (exponential distribution)
 			double a = birthRate * k;
-			double t_ = -Math.log(random.nextDouble())/a;
-            t += t_;
-
-            Node node1 = activeLineages.get(random.nextInt(k));
-            Node node2;
-            do {
-                node2 = activeLineages.get(random.nextInt(k));
-            } while (node2.equals(node1));
-
-            Node newParent = new Node();
-            newParent.setNr(nextNr++);
-            newParent.setHeight(t);
-            newParent.addChild(node1);
-            newParent.addChild(node2);
-
-            activeLineages.remove(node1);
-            activeLineages.remove(node2);
-            activeLineages.add(newParent);
+            t += -Math.log(random.nextDouble())/a;
+			k = join(activeLineages, k, t, nextNr++, random);
         }
-
-        tree.assignFromWithoutID(new Tree(activeLineages.get(0)));
-		
-
-		
-		
+        return activeLineages[0];
 	}
 
-	
-	
+	/**
+	 * Joins two distinct lineages drawn uniformly from activeLineages[0..k) at height t.
+	 * @return number of active lineages left
+	 */
+	private static int join(Node [] activeLineages, int k, double t, int nr, Random random) {
+		int i = random.nextInt(k);
+		int j = random.nextInt(k - 1);
+		if (j >= i) {
+			j++;
+		}
+        Node newParent = new Node();
+        newParent.setNr(nr);
+        newParent.setHeight(t);
+        newParent.addChild(activeLineages[i]);
+        newParent.addChild(activeLineages[j]);
+
+        activeLineages[i] = newParent;
+        activeLineages[j] = activeLineages[k - 1];
+        return k - 1;
+	}
 }
@@ -0,0 +1,113 @@
+package test.speedemon;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.RealParameter;
+import speedemon.BirthDeathSkylineModel;
+
+/**
+ * Compares the batch version of log_q and p0 used for the tree likelihood with the scalar
+ * versions on random trees and rates, for each parametrisation of the rates.
+ */
+public class BirthDeathSkylineModelTest {
+	final static String [] PARAMETRISATIONS = {"birth-death-sampling", "reproductiveNumber", "netDiversification", "birth-turnOver"};
+
+	@Test
+	public void testLogQAndP0MatchScalarVersions() {
+		Random random = new Random(43);
+		for (String parametrisation : PARAMETRISATIONS) {
+			for (int rep = 0; rep < 20; rep++) {
+				Tree tree = RandomTrees.tree(5 + random.nextInt(60), rep % 2 == 0 ? 0 : 0.02, random);
+				BatchModel model = new BatchModel();
+				Object [] origin = {"tree", tree,
+						"origin", new RealParameter(new Double[] {tree.getRoot().getHeight() * (1.1 + random.nextDouble())})};
+				model.initByName(concat(origin, rates(parametrisation, 1 + random.nextInt(4), rep % 4 == 3, random)));
+				model.calculateTreeLogLikelihood(tree);
+				model.assertMatchesScalarVersions(parametrisation + " rep " + rep, random);
+			}
+		}
+	}
+
+	/** @return input names and values of rates with epochs intervals, with removal probability if sampledAncestors **/
+	private Object [] rates(String parametrisation, int epochs, boolean sampledAncestors, Random random) {
+		Object [] removal = sampledAncestors ? new Object[] {"removalProbability", parameter(epochs, 0.3, 0.5, random)} : new Object[] {};
+		Object [] rates;
+		switch (parametrisation) {
+		case "birth-death-sampling":
+			rates = new Object[] {
+					"birthRate", parameter(epochs, 2, 1, random),
+					"deathRate", parameter(epochs, 0, 1, random),
+					"samplingRate", parameter(epochs, 0.5, 1, random)};
+			break;
+		case "reproductiveNumber":
+			rates = new Object[] {
+					"reproductiveNumber", parameter(epochs, 1.2, 1.5, random),
+					"becomeUninfectiousRate", parameter(epochs, 1, 1, random),
+					"samplingProportion", parameter(epochs, 0.1, 0.5, random)};
+			break;
+		case "netDiversification":
+			rates = new Object[] {
+					"netDiversification", parameter(epochs, 1, 1, random),
+					"turnOver", parameter(epochs, 0.1, 0.6, random),
+					"samplingProportion", parameter(epochs, 0.1, 0.5, random)};
+			break;
+		default:
+			rates = new Object[] {
+					"birthRate", parameter(epochs, 2, 1, random),
+					"turnOver", parameter(epochs, 0.1, 0.6, random),
+					"samplingProportion", parameter(epochs, 0.1, 0.5, random)};
+		}
+		return concat(rates, removal);
+	}
+
+	private Object [] concat(Object [] a, Object [] b) {
+		Object [] args = new Object[a.length + b.length];
+		System.arraycopy(a, 0, args, 0, a.length);
+		System.arraycopy(b, 0, args, a.length, b.length);
+		return args;
+	}
+
+	/** @return parameter with dimension values uniform on [lower, lower + range) **/
+	private RealParameter parameter(int dimension, double lower, double range, Random random) {
+		Double [] values = new Double[dimension];
+		for (int i = 0; i < dimension; i++) {
+			values[i] = lower + range * random.nextDouble();
+		}
+		return new RealParameter(values);
+	}
+
+	/** gives access to the batch kernel, as subclasses of the model have **/
+	static class BatchModel extends BirthDeathSkylineModel {
+
+		void assertMatchesScalarVersions(String message, Random random) {
+			int count = 200;
+			double [] x = new double[count];
+			int [] epochs = new int[count];
+			for (int i = 0; i < count; i++) {
+				// include the times at which rates change, at which the exponent is 0
+				x[i] = random.nextInt(10) == 0 ? times[random.nextInt(totalIntervals)] : times[totalIntervals - 1] * random.nextDouble();
+				epochs[i] = index(x[i]);
+			}
+			double [] logQ = new double[count];
+			double [] p0 = new double[count];
+			logQAndP0(epochs, x, count, logQ, p0);
+			double [] logQOnly = new double[count];
+			logQAndP0(epochs, x, count, logQOnly, null);
+			for (int i = 0; i < count; i++) {
+				int e = epochs[i];
+				double expected = log_q(e, times[e], x[i]);
+				assertEquals(message + ": log_q at " + x[i], expected, logQ[i], 1e-12 * Math.max(1, Math.abs(expected)));
+				assertEquals(message + ": log_q without p0 at " + x[i], expected, logQOnly[i], 1e-12 * Math.max(1, Math.abs(expected)));
+				double g = g(e, times[e], x[i]);
+				assertEquals(message + ": g at " + x[i], g, Math.exp(logQ[i]), 1e-12 * g);
+				expected = p0(e, times[e], x[i]);
+				assertEquals(message + ": p0 at " + x[i], expected, p0[i], 1e-12 * Math.max(1, Math.abs(expected)));
+			}
+		}
+	}
+}
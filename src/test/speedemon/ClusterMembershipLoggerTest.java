@@ -0,0 +1,222 @@
+package test.speedemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Logger;
+import beast.base.inference.parameter.RealParameter;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.TreeFile;
+import speedemon.ClusterCounter;
+import speedemon.ClusterMembershipLogger;
+import speedemon.ClusterMembershipReader;
+import speedemon.ClusterTreeSetAnalyser;
+import speedemon.IndexedTreeSet;
+
+/**
+ * Logs cluster memberships of random trees, and checks what is read back, resuming
+ * after a sample was cut short, and the summary of the analyser against that of the trees.
+ */
+public class ClusterMembershipLoggerTest {
+	final static int TAXON_COUNT = 15;
+	final static double EPSILON = 0.02;
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random random = new Random(31);
+		List<Tree> trees = randomTrees(200, random);
+		Tree tree = randomTrees(1, random).get(0);
+		File file = tempFile(".bin");
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		log(tree, trees, 0, trees.size(), file, new PrintStream(trace, true));
+		String [] clusterCounts = trace.toString().split("\t");
+		assertEquals("ClusterCount", clusterCounts[0]);
+
+		int [] clusters = new int[tree.getNodeCount()];
+		try (ClusterMembershipReader reader = new ClusterMembershipReader(file)) {
+			String [] taxa = reader.getTaxa();
+			String [] sorted = taxa.clone();
+			Arrays.sort(sorted);
+			assertTrue(Arrays.equals(sorted, taxa));
+
+			for (int i = 0; i < trees.size(); i++) {
+				assertTrue("sample " + i, reader.next());
+				assertEquals(i * 1000L, reader.getSample());
+				int k = ClusterCounter.countClusters(trees.get(i), clusters, EPSILON);
+				assertEquals("sample " + i, k, reader.getClusterCount());
+				assertEquals("sample " + i, Integer.toString(k), clusterCounts[i + 1]);
+
+				// same partition, with clusters numbered in order of their first taxon
+				int [] labels = reader.getLabels();
+				int next = 0;
+				for (int a = 0; a < taxa.length; a++) {
+					assertTrue("sample " + i, labels[a] <= next);
+					next = Math.max(next, labels[a] + 1);
+					for (int b = 0; b < a; b++) {
+						assertEquals("sample " + i + ": " + taxa[a] + " and " + taxa[b],
+								clusters[nrOf(trees.get(i), taxa[a])] == clusters[nrOf(trees.get(i), taxa[b])],
+								labels[a] == labels[b]);
+					}
+				}
+			}
+			assertFalse(reader.next());
+			assertEquals(file.length(), reader.getLength());
+		}
+	}
+
+	@Test
+	public void testResumeAfterSampleCutShort() throws IOException {
+		Random random = new Random(37);
+		List<Tree> trees = randomTrees(150, random);
+		Tree tree = randomTrees(1, random).get(0);
+		PrintStream trace = new PrintStream(new ByteArrayOutputStream());
+
+		File expected = tempFile(".bin");
+		log(tree, trees, 0, 150, expected, trace);
+
+		// run stopped while writing sample 100
+		File file = tempFile(".bin");
+		log(tree, trees, 0, 100, file, trace);
+		long length99;
+		try (ClusterMembershipReader reader = new ClusterMembershipReader(file)) {
+			for (int i = 0; i < 99; i++) {
+				reader.next();
+			}
+			length99 = reader.getLength();
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength((length99 + file.length()) / 2);
+		}
+		List<String> samples = readSamples(file);
+		assertEquals(99, samples.size());
+		assertEquals(readSamples(expected).subList(0, 99), samples);
+
+		Logger.LogFileMode mode = Logger.FILE_MODE;
+		try {
+			Logger.FILE_MODE = Logger.LogFileMode.resume;
+			log(tree, trees, 99, 150, file, trace);
+		} finally {
+			Logger.FILE_MODE = mode;
+		}
+		assertEquals(readSamples(expected), readSamples(file));
+		assertEquals(expected.length(), file.length());
+	}
+
+	@Test
+	public void testAnalyserGivesSameClustersAsFromTrees() throws IOException {
+		Random random = new Random(41);
+		List<Tree> trees = randomTrees(300, random);
+		Tree tree = randomTrees(1, random).get(0);
+		File file = tempFile(".bin");
+		log(tree, trees, 0, trees.size(), file, new PrintStream(new ByteArrayOutputStream()));
+		File treeFile = tempFile(".trees");
+		IndexedTreeSet.getIndexFile(treeFile).deleteOnExit();
+		try (PrintStream out = new PrintStream(treeFile)) {
+			for (Tree t : trees) {
+				out.println(toNewick(t.getRoot()) + ";");
+			}
+		}
+
+		String fromTrees = analyse("trees", new TreeFile(treeFile.getPath()));
+		String fromMemberships = analyse("membership", file);
+		assertTrue(fromMemberships, fromMemberships.startsWith("Cluster memberships of 270 samples\n"));
+		assertEquals(clusters(fromTrees), clusters(fromMemberships));
+	}
+
+	/** log trees from .. end - 1 through a logger of tree to file, as sample nr 1000 times tree nr **/
+	private void log(Tree tree, List<Tree> trees, int from, int end, File file, PrintStream trace) {
+		ClusterMembershipLogger logger = new ClusterMembershipLogger();
+		logger.initByName("tree", tree, "epsilon", new RealParameter(new Double[] {EPSILON}), "file", file.getPath());
+		logger.init(trace);
+		for (int i = from; i < end; i++) {
+			tree.assignFrom(trees.get(i));
+			logger.log(i * 1000L, trace);
+		}
+		logger.close(trace);
+	}
+
+	/**
+	 * @return random trees, with taxa numbered as in a BEAST run so that the same taxon has the
+	 * same leaf number in every tree, and with taxon names not in the order of leaf numbers
+	 */
+	private List<Tree> randomTrees(int count, Random random) {
+		List<Tree> trees = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Tree tree = RandomTrees.tree(TAXON_COUNT, 0.005, random);
+			for (int j = 0; j < TAXON_COUNT; j++) {
+				tree.getNode(j).setID("t" + (7 * j) % TAXON_COUNT);
+			}
+			trees.add(tree);
+		}
+		return trees;
+	}
+
+	private int nrOf(Tree tree, String taxon) {
+		for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+			if (tree.getNode(i).getID().equals(taxon)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("no taxon " + taxon);
+	}
+
+	/** @return sample numbers and labels of all complete samples in file **/
+	private List<String> readSamples(File file) throws IOException {
+		List<String> samples = new ArrayList<>();
+		try (ClusterMembershipReader reader = new ClusterMembershipReader(file)) {
+			while (reader.next()) {
+				samples.add(reader.getSample() + "\t" + Arrays.toString(reader.getLabels()));
+			}
+		}
+		return samples;
+	}
+
+	/** @return part of output from the cluster sets onwards **/
+	private String clusters(String output) {
+		return output.substring(output.indexOf("support\t#taxa\tclusters\n"));
+	}
+
+	private String toNewick(Node node) {
+		String length = node.isRoot() ? "" : ":" + (node.getParent().getHeight() - node.getHeight());
+		if (node.isLeaf()) {
+			return node.getID() + length;
+		}
+		return "(" + toNewick(node.getLeft()) + "," + toNewick(node.getRight()) + ")" + length;
+	}
+
+	private File tempFile(String extension) throws IOException {
+		File file = File.createTempFile("ClusterMembershipLoggerTest", extension);
+		file.deleteOnExit();
+		return file;
+	}
+
+	/** @return output of the analyser with burn-in of 10% and epsilon of the logger, with inputs set to args **/
+	private String analyse(Object... args) throws IOException {
+		File out = tempFile(".txt");
+		ClusterTreeSetAnalyser analyser = new ClusterTreeSetAnalyser();
+		analyser.initByName(args);
+		analyser.initByName("out", new OutFile(out.getPath()), "burnin", 10, "epsilon", EPSILON, "verbose", false);
+		try {
+			analyser.run();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return new String(Files.readAllBytes(out.toPath()));
+	}
+}
@@ -0,0 +1,195 @@
+package test.speedemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.TreeFile;
+import speedemon.ClusterTreeSetAnalyser;
+
+/**
+ * Analyses Newick tree sets in which the order of the leaves differs between trees,
+ * so leaf numbers differ between trees, and checks support of the clusters.
+ */
+public class ClusterTreeSetAnalyserTest {
+	// at epsilon = 0.5: clusters A + B, C + D, E + F
+	final static String TREE1 = "(((A:0.1,B:0.1):0.9,(C:0.1,D:0.1):0.9):1.0,(E:0.1,F:0.1):1.9);";
+	// clusters A + B, C, D, E + F
+	final static String TREE2 = "(((A:0.1,B:0.1):0.9,(C:0.7,D:0.7):0.3):1.0,(E:0.1,F:0.1):1.9);";
+	// clusters A, B, C + D, E + F
+	final static String TREE3 = "(((A:1.0,(C:0.1,D:0.1):0.9):0.5,B:1.5):0.5,(E:0.1,F:0.1):1.9);";
+
+	@Test
+	public void testShuffledLeafOrder() throws IOException {
+		File trees = writeTrees(shuffledTrees(new Random(13)));
+		String output = analyse(1, "trees", new TreeFile(trees.getPath()), "epsilon", 0.5);
+		assertClusterSupport(output);
+		assertTrue(output, output.contains("The 95 precent credible set consists of 3 out of 3 topologies"));
+		assertTrue(output, output.contains("60%\t3\t((A + B,C + D),E + F)\n"));
+		assertTrue(output, output.contains("30%\t4\t((A + B,(C,D)),E + F)\n"));
+		assertTrue(output, output.contains("10%\t4\t(((A,C + D),B),E + F)\n"));
+	}
+
+	@Test
+	public void testShuffledLeafOrderInChains() throws IOException {
+		List<String> trees = shuffledTrees(new Random(17));
+		File chain1 = writeTrees(trees.subList(0, 50));
+		File chain2 = writeTrees(trees.subList(50, 100));
+		assertClusterSupport(analyse(2, "chains", chain1.getPath() + "," + chain2.getPath(), "epsilon", 0.5));
+	}
+
+	@Test
+	public void testShuffledLeafOrderWithEpsilons() throws IOException {
+		File trees = writeTrees(shuffledTrees(new Random(19)));
+		assertClusterSupport(analyse(2, "trees", new TreeFile(trees.getPath()), "epsilons", "0.5"));
+	}
+
+	@Test
+	public void testThreadsGiveSameOutput() throws IOException {
+		// more than two batches of trees, so partial counts of batches are merged
+		Random random = new Random(23);
+		List<String> trees = new ArrayList<>();
+		for (int i = 0; i < 2500; i++) {
+			trees.add(RandomTrees.newick(10, 0, random));
+		}
+		TreeFile file = new TreeFile(writeTrees(trees).getPath());
+		String sequential = analyse(1, "trees", file, "epsilon", 0.012);
+		assertEquals(sequential, analyse(4, "trees", file, "epsilon", 0.012));
+		sequential = analyse(1, "trees", file, "epsilons", "0.005,0.012,0.02");
+		assertEquals(sequential, analyse(4, "trees", file, "epsilons", "0.005,0.012,0.02"));
+	}
+
+	@Test
+	public void testEpsilonsMatchSeparateRuns() throws IOException {
+		Random random = new Random(29);
+		List<String> trees = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			trees.add(RandomTrees.newick(10, 0, random));
+		}
+		// one threshold is exactly the height of a node of the first tree, which is clustered at that threshold.
+		// Copies of this tree follow a copy with all heights just above, so that their cluster sets only
+		// have separate counts if the node is clustered at the threshold
+		Tree tree = new TreeParser(trees.get(0), false, false, true, 0);
+		double [] heights = new double[tree.getInternalNodeCount()];
+		for (int i = 0; i < heights.length; i++) {
+			heights[i] = tree.getNode(tree.getLeafNodeCount() + i).getHeight();
+		}
+		Arrays.sort(heights);
+		double [] epsilons = {0.002, heights[3], 0.015, 0.03, 1.0};
+		Arrays.sort(epsilons);
+		for (int i = 0; i < 20; i++) {
+			trees.add(trees.get(0));
+		}
+		for (Node node : tree.getNodesAsArray()) {
+			node.setHeight(node.getHeight() * (1 + 1e-9));
+		}
+		trees.set(0, toNewick(tree.getRoot(), random) + ";");
+		TreeFile file = new TreeFile(writeTrees(trees).getPath());
+
+		StringBuilder b = new StringBuilder();
+		for (double epsilon : epsilons) {
+			b.append(b.length() > 0 ? "," : "").append(epsilon);
+		}
+		String sweep = analyse(1, "trees", file, "epsilons", b.toString());
+		for (double epsilon : epsilons) {
+			String header = "\n=== epsilon = " + epsilon + " ===\n";
+			assertTrue(sweep, sweep.contains(header));
+			String section = sweep.substring(sweep.indexOf(header) + header.length());
+			if (section.contains("\n=== epsilon = ")) {
+				section = section.substring(0, section.indexOf("\n=== epsilon = "));
+			}
+			String single = analyse(1, "trees", file, "epsilon", epsilon);
+			assertEquals("epsilon = " + epsilon, clusters(single), clusters(section));
+		}
+	}
+
+	/** @return part of output from the cluster sets onwards **/
+	private String clusters(String output) {
+		return output.substring(output.indexOf("support\t#taxa\tclusters\n"));
+	}
+
+	private void assertClusterSupport(String output) {
+		assertTrue(output, output.contains("60%\t3\tA + B,C + D,E + F\n"));
+		assertTrue(output, output.contains("30%\t4\tA + B,C,D,E + F\n"));
+		assertTrue(output, output.contains("10%\t4\tA,B,C + D,E + F\n"));
+		// only these three pairs are ever in the same cluster
+		String pairs = output.substring(output.indexOf("support\tcount\tpair\n"));
+		assertTrue(output, pairs.startsWith("support\tcount\tpair\n"
+				+ "100%\t100\tE + F\n"
+				+ "90%\t90\tA + B\n"
+				+ "70%\t70\tC + D\n"));
+		assertTrue(output, pairs.split("\n").length == 4 || pairs.split("\n")[4].isEmpty());
+	}
+
+	/** @return 60 copies of TREE1, 30 of TREE2 and 10 of TREE3 in random order, each with random order of children **/
+	private List<String> shuffledTrees(Random random) {
+		List<String> trees = new ArrayList<>();
+		String [] newicks = {TREE1, TREE2, TREE3};
+		int [] copies = {60, 30, 10};
+		for (int i = 0; i < newicks.length; i++) {
+			Tree tree = new TreeParser(newicks[i], false, false, true, 0);
+			for (int j = 0; j < copies[i]; j++) {
+				trees.add(toNewick(tree.getRoot(), random) + ";");
+			}
+		}
+		for (int i = trees.size() - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			trees.set(i, trees.set(j, trees.get(i)));
+		}
+		return trees;
+	}
+
+	private String toNewick(Node node, Random random) {
+		String length = node.isRoot() ? "" : ":" + (node.getParent().getHeight() - node.getHeight());
+		if (node.isLeaf()) {
+			return node.getID() + length;
+		}
+		String left = toNewick(node.getLeft(), random);
+		String right = toNewick(node.getRight(), random);
+		if (random.nextBoolean()) {
+			return "(" + right + "," + left + ")" + length;
+		}
+		return "(" + left + "," + right + ")" + length;
+	}
+
+	private File writeTrees(List<String> trees) throws IOException {
+		File file = File.createTempFile("ClusterTreeSetAnalyserTest", ".trees");
+		file.deleteOnExit();
+		speedemon.IndexedTreeSet.getIndexFile(file).deleteOnExit();
+		try (PrintStream out = new PrintStream(file)) {
+			for (String tree : trees) {
+				out.println(tree);
+			}
+		}
+		return file;
+	}
+
+	/** @return output of the analyser on trees without burn-in, with inputs set to args **/
+	private String analyse(int threads, Object... args) throws IOException {
+		File out = File.createTempFile("ClusterTreeSetAnalyserTest", ".txt");
+		out.deleteOnExit();
+		ClusterTreeSetAnalyser analyser = new ClusterTreeSetAnalyser();
+		analyser.initByName(args);
+		analyser.initByName("out", new OutFile(out.getPath()), "burnin", 0, "threads", threads, "verbose", false);
+		try {
+			analyser.run();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return new String(Files.readAllBytes(out.toPath()));
+	}
+}
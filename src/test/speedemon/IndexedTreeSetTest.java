@@ -0,0 +1,124 @@
+package test.speedemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import speedemon.IndexedTreeSet;
+
+/**
+ * Reads NEXUS tree files with a translate block, quoted taxon names and comments,
+ * and checks that a cached index is rebuilt when the tree file changes.
+ */
+public class IndexedTreeSetTest {
+
+	final static String HEADER = "#NEXUS\n"
+			+ "[comment before the taxa; with a semicolon]\n"
+			+ "Begin taxa;\n"
+			+ "\tDimensions ntax=3;\n"
+			+ "\tTaxlabels 'taxon one' \"taxon_two\" three;\n"
+			+ "End;\n"
+			+ "Begin trees;\n"
+			+ "\tTranslate\n"
+			+ "\t\t1 'taxon one',\n"
+			+ "\t\t2 \"taxon_two\",\n"
+			+ "\t\t3 three\n"
+			+ "\t\t;\n";
+
+	@Test
+	public void testNexus() throws IOException {
+		File file = writeNexus(
+				"tree STATE_0 [&lnP=-10.5; comment with a semicolon [nested]] = [&R] ((1:1.0,2:1.0):0.5,3:1.5);",
+				"TREE STATE_1000 = ((1:2.0,3:2.0):1.0,2:3.0);",
+				"utree STATE_2000 [no semicolon here] = (1:0.5,(2:0.25,3:0.25):0.25);");
+		try (IndexedTreeSet trees = new IndexedTreeSet(file)) {
+			assertEquals(3, trees.getTreeCount());
+			assertTree("((taxon one,taxon_two):1.0,three):1.5", trees.getTree(0));
+			assertTree("((taxon one,three):2.0,taxon_two):3.0", trees.getTree(1));
+			assertTree("((taxon_two,three):0.25,taxon one):0.5", trees.getTree(2));
+		}
+		assertTrue(IndexedTreeSet.getIndexFile(file).exists());
+
+		// read again from the cached index
+		try (IndexedTreeSet trees = new IndexedTreeSet(file)) {
+			assertEquals(3, trees.getTreeCount());
+			assertTree("((taxon one,three):2.0,taxon_two):3.0", trees.getTree(1));
+		}
+	}
+
+	@Test
+	public void testStaleIndexIsRebuilt() throws IOException {
+		File file = writeNexus(
+				"tree STATE_0 = ((1:1.0,2:1.0):0.5,3:1.5);",
+				"tree STATE_1000 = ((1:2.0,3:2.0):1.0,2:3.0);");
+		try (IndexedTreeSet trees = new IndexedTreeSet(file)) {
+			assertEquals(2, trees.getTreeCount());
+		}
+		long lastModified = file.lastModified();
+
+		// tree added, so the size of the file changes
+		writeNexus(file,
+				"tree STATE_0 = ((1:1.0,2:1.0):0.5,3:1.5);",
+				"tree STATE_1000 = ((1:2.0,3:2.0):1.0,2:3.0);",
+				"tree STATE_2000 = (1:3.0,(2:1.0,3:1.0):2.0);");
+		try (IndexedTreeSet trees = new IndexedTreeSet(file)) {
+			assertEquals(3, trees.getTreeCount());
+			assertTree("((taxon_two,three):1.0,taxon one):3.0", trees.getTree(2));
+		}
+
+		// same size, but trees are at other positions, so only the modification time tells the index is stale
+		writeNexus(file,
+				"tree STATE_0 = ((1:1.0,2:1.0):0.5,3:1.5);",
+				"tree STATE_1000000 = ((1:2.0,3:2.0):1.0,2:3.0);",
+				"tree STATE_2 = (1:3.0,(2:1.0,3:1.0):2.0);");
+		file.setLastModified(lastModified + 10000);
+		try (IndexedTreeSet trees = new IndexedTreeSet(file)) {
+			assertEquals(3, trees.getTreeCount());
+			assertTree("((taxon one,three):2.0,taxon_two):3.0", trees.getTree(1));
+			assertTree("((taxon_two,three):1.0,taxon one):3.0", trees.getTree(2));
+		}
+	}
+
+	/** compare with a newick string with internal node heights, children in sorted order **/
+	private void assertTree(String expected, Tree tree) {
+		assertEquals(expected, toString(tree.getRoot()));
+	}
+
+	private String toString(Node node) {
+		if (node.isLeaf()) {
+			return node.getID();
+		}
+		String [] children = new String[node.getChildCount()];
+		for (int i = 0; i < children.length; i++) {
+			children[i] = toString(node.getChild(i));
+		}
+		Arrays.sort(children);
+		return "(" + String.join(",", children) + "):" + node.getHeight();
+	}
+
+	private File writeNexus(String... trees) throws IOException {
+		File file = File.createTempFile("IndexedTreeSetTest", ".trees");
+		file.deleteOnExit();
+		IndexedTreeSet.getIndexFile(file).deleteOnExit();
+		writeNexus(file, trees);
+		return file;
+	}
+
+	private void writeNexus(File file, String... trees) throws IOException {
+		try (PrintStream out = new PrintStream(file)) {
+			out.print(HEADER);
+			for (String tree : trees) {
+				out.println("\t" + tree);
+			}
+			out.println("End;");
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package test.speedemon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+
+/**
+ * Random binary trees for tests, with many internal nodes close to the thresholds used in the tests.
+ */
+public class RandomTrees {
+
+	/**
+	 * @param tipSpread tip heights are uniform on [0, tipSpread), so tips are contemporaneous if 0
+	 * @return newick string of a random tree with taxa t0 ... t(n-1)
+	 */
+	public static String newick(int n, double tipSpread, Random random) {
+		List<String> clades = new ArrayList<>();
+		List<Double> heights = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			clades.add("t" + i);
+			heights.add(tipSpread * random.nextDouble());
+		}
+		while (clades.size() > 1) {
+			int i = random.nextInt(clades.size());
+			String left = clades.remove(i);
+			double leftHeight = heights.remove(i);
+			int j = random.nextInt(clades.size());
+			String right = clades.remove(j);
+			double rightHeight = heights.remove(j);
+			double height = Math.max(leftHeight, rightHeight) + 0.01 * -Math.log(random.nextDouble());
+			clades.add("(" + left + ":" + (height - leftHeight) + "," + right + ":" + (height - rightHeight) + ")");
+			heights.add(height);
+		}
+		return clades.get(0) + ";";
+	}
+
+	public static Tree tree(int n, double tipSpread, Random random) {
+		return new TreeParser(newick(n, tipSpread, random), false, false, true, 0);
+	}
+}
@@ -0,0 +1,142 @@
+package test.speedemon;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import speedemon.TreeAboveThreshold;
+
+/**
+ * Compares the incrementally refiltered tree with a tree filtered from scratch
+ * after random height changes, moves across the threshold, narrow and wide exchanges,
+ * changes of epsilon and restores.
+ */
+public class TreeAboveThresholdTest {
+
+	@Test
+	public void testRefilterTreeMatchesFilterTree() {
+		Random random = new Random(127);
+		for (int rep = 0; rep < 50; rep++) {
+			Tree tree = RandomTrees.tree(5 + random.nextInt(60), rep % 2 == 0 ? 0 : 0.01, random);
+			double epsilon = 0.01 + 0.02 * random.nextDouble();
+			TreeAboveThreshold filtered = new TreeAboveThreshold(tree);
+			filtered.filterTree(tree, epsilon);
+			tree.store();
+			tree.setEverythingDirty(false);
+
+			for (int step = 0; step < 200; step++) {
+				if (random.nextInt(20) == 0) {
+					epsilon = 0.01 + 0.02 * random.nextDouble();
+				}
+				int changes = 1 + random.nextInt(3);
+				for (int i = 0; i < changes; i++) {
+					int move = random.nextInt(4);
+					if (move == 0 && narrowExchange(tree, random) || move == 1 && wideExchange(tree, random)) {
+						continue;
+					}
+					Node node = tree.getNode(tree.getLeafNodeCount() + random.nextInt(tree.getInternalNodeCount()));
+					double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+					double upper = node.isRoot() ? lower + 0.05 : node.getParent().getHeight();
+					if (random.nextBoolean() && lower < epsilon && epsilon < upper) {
+						// move to the other side of the threshold
+						double height = node.getHeight() <= epsilon ? epsilon + (upper - epsilon) * random.nextDouble()
+								: lower + (epsilon - lower) * random.nextDouble();
+						node.setHeight(height);
+					} else {
+						node.setHeight(lower + (upper - lower) * random.nextDouble());
+					}
+				}
+				filtered.refilterTree(tree, epsilon);
+				assertSameTree("step " + step, tree, epsilon, filtered);
+
+				if (random.nextBoolean()) {
+					// accept
+					tree.store();
+					filtered.clearChangedNodes();
+				} else {
+					// reject
+					tree.restore();
+					filtered.refilterTree(tree, epsilon);
+					assertSameTree("restore at step " + step, tree, epsilon, filtered);
+				}
+				tree.setEverythingDirty(false);
+			}
+		}
+	}
+
+	/** swap a child of a random internal node with the sibling of that node, if the sibling is lower **/
+	private boolean narrowExchange(Tree tree, Random random) {
+		Node node = tree.getNode(tree.getLeafNodeCount() + random.nextInt(tree.getInternalNodeCount()));
+		if (node.isRoot()) {
+			return false;
+		}
+		Node parent = node.getParent();
+		Node uncle = parent.getLeft() == node ? parent.getRight() : parent.getLeft();
+		if (uncle.getHeight() >= node.getHeight()) {
+			return false;
+		}
+		Node child = random.nextBoolean() ? node.getLeft() : node.getRight();
+		exchangeNodes(child, uncle, node, parent);
+		return true;
+	}
+
+	/** swap two random nodes with different parents, if both fit under the other's parent **/
+	private boolean wideExchange(Tree tree, Random random) {
+		Node i = tree.getNode(random.nextInt(tree.getNodeCount()));
+		Node j = tree.getNode(random.nextInt(tree.getNodeCount()));
+		if (i.isRoot() || j.isRoot() || i.getParent() == j.getParent()) {
+			return false;
+		}
+		// this also rules out one node being an ancestor of the other
+		if (j.getHeight() >= i.getParent().getHeight() || i.getHeight() >= j.getParent().getHeight()) {
+			return false;
+		}
+		exchangeNodes(i, j, i.getParent(), j.getParent());
+		return true;
+	}
+
+	/** as Exchange does it, marking nodes that get a new parent as filthy **/
+	private void exchangeNodes(Node i, Node j, Node p, Node q) {
+		p.removeChild(i);
+		p.addChild(j);
+		p.makeDirty(Tree.IS_FILTHY);
+		j.makeDirty(Tree.IS_FILTHY);
+		q.removeChild(j);
+		q.addChild(i);
+		q.makeDirty(Tree.IS_FILTHY);
+		i.makeDirty(Tree.IS_FILTHY);
+	}
+
+	private void assertSameTree(String message, Tree tree, double epsilon, TreeAboveThreshold filtered) {
+		TreeAboveThreshold expected = new TreeAboveThreshold(tree);
+		expected.filterTree(tree, epsilon);
+		assertEquals(message + ": node count", expected.getNodeCount(), filtered.getNodeCount());
+		assertEquals(message + ": leaf count", expected.getLeafNodeCount(), filtered.getLeafNodeCount());
+		assertEquals(message + ": tree", toString(expected.getRoot()), toString(filtered.getRoot()));
+		// leaves first, then internal nodes, numbered by their position
+		for (int i = 0; i < filtered.getNodeCount(); i++) {
+			Node node = filtered.getNode(i);
+			assertEquals(message + ": number of node " + i, i, node.getNr());
+			assertEquals(message + ": node " + i + " is leaf", i < filtered.getLeafNodeCount(), node.isLeaf());
+		}
+	}
+
+	/** @return newick string with heights, children in sorted order, so it does not depend on node order **/
+	private String toString(Node node) {
+		if (node.isLeaf()) {
+			return node.getID() + ":" + node.getHeight();
+		}
+		String left = toString(node.getLeft());
+		String right = toString(node.getRight());
+		if (left.compareTo(right) > 0) {
+			String tmp = left;
+			left = right;
+			right = tmp;
+		}
+		return "(" + left + "," + right + "):" + node.getHeight();
+	}
+}
@@ -0,0 +1,82 @@
+package test.speedemon;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import speedemon.UniformThresholdOperator;
+
+/**
+ * Compares proposals of UniformThresholdOperator with the original implementation,
+ * which recomputed the candidate lists with getCandidates before and after the move.
+ */
+public class UniformThresholdOperatorTest {
+
+	@Test
+	public void testProposalMatchesCandidateLists() {
+		Random random = new Random(123);
+		for (int rep = 0; rep < 40; rep++) {
+			String newick = RandomTrees.newick(5 + random.nextInt(60), rep % 2 == 0 ? 0 : 0.02, random);
+			double epsilon = 0.005 + 0.03 * random.nextDouble();
+			Tree tree = new TreeParser(newick, false, false, true, 0);
+			Tree reference = new TreeParser(newick, false, false, true, 0);
+
+			UniformThresholdOperator operator = new UniformThresholdOperator();
+			operator.initByName("tree", tree, "epsilon", new RealParameter(epsilon + ""), "weight", 1.0);
+
+			for (int i = 0; i < 500; i++) {
+				long seed = random.nextLong();
+				Randomizer.setSeed(seed);
+				double logHR = operator.proposal();
+				Randomizer.setSeed(seed);
+				double expected = referenceProposal(operator, reference, epsilon);
+				assertEquals("Hastings ratio of proposal " + i, expected, logHR, 1e-12);
+				for (int j = 0; j < tree.getNodeCount(); j++) {
+					assertEquals("height of node " + j, reference.getNode(j).getHeight(), tree.getNode(j).getHeight(), 0.0);
+				}
+			}
+		}
+	}
+
+	/** proposal as implemented before candidates were collected in a single pass **/
+	private double referenceProposal(UniformThresholdOperator operator, Tree tree, double epsilon) {
+		boolean startAboveThreshold = Randomizer.nextBoolean();
+		List<Node> eligibleNodesBefore = operator.getCandidates(tree, epsilon, startAboveThreshold);
+		int nOptionsBefore = eligibleNodesBefore.size();
+		if (nOptionsBefore == 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		Node node = eligibleNodesBefore.get(Randomizer.nextInt(nOptionsBefore));
+
+		double upperBefore, lowerBefore;
+		if (startAboveThreshold) {
+			upperBefore = epsilon;
+			lowerBefore = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		} else {
+			upperBefore = node.getParent().getHeight();
+			lowerBefore = epsilon;
+		}
+		node.setHeight(Randomizer.nextDouble() * (upperBefore - lowerBefore) + lowerBefore);
+
+		double upperAfter, lowerAfter;
+		if (startAboveThreshold) {
+			upperAfter = node.getParent().getHeight();
+			lowerAfter = epsilon;
+		} else {
+			upperAfter = epsilon;
+			lowerAfter = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		}
+		double logHR = Math.log(upperBefore - lowerBefore) - Math.log(upperAfter - lowerAfter);
+
+		int nOptionsAfter = operator.getCandidates(tree, epsilon, !startAboveThreshold).size();
+		return logHR + Math.log(nOptionsBefore) - Math.log(nOptionsAfter);
+	}
+}